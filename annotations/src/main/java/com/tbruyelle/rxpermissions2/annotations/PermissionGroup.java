@@ -0,0 +1,42 @@
+package com.tbruyelle.rxpermissions2.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the permissions requested by a method of an interface. The RxPermissions compiler
+ * generates an implementation of the interface, named after it with the {@code _Impl} suffix,
+ * which takes an {@code RxPermissions} instance.
+ * <p>
+ * The method takes no parameter, its return type selects the request :
+ * <ul>
+ * <li>{@code PermissionRequest} : the compiled permissions</li>
+ * <li>{@code Observable<Boolean>} : {@code RxPermissions.request}</li>
+ * <li>{@code Observable<Permission>} : {@code RxPermissions.requestEach}, or
+ * {@code requestEachCombined} if {@link #combined()}</li>
+ * <li>{@code Single<Boolean>} : {@code RxPermissions.requestSingle}</li>
+ * <li>{@code Single<Permission>} : {@code RxPermissions.requestCombinedSingle}</li>
+ * <li>{@code Completable} : {@code RxPermissions.requireAll}</li>
+ * <li>{@code <T> ObservableTransformer<T, Boolean>} : {@code RxPermissions.ensure}</li>
+ * <li>{@code <T> ObservableTransformer<T, Permission>} : {@code RxPermissions.ensureEach}, or
+ * {@code ensureEachCombined} if {@link #combined()}</li>
+ * </ul>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface PermissionGroup {
+
+    /**
+     * The permissions, duplicates are ignored.
+     */
+    String[] value();
+
+    /**
+     * Emits one combined {@code Permission} instead of one per permission.
+     */
+    boolean combined() default false;
+}
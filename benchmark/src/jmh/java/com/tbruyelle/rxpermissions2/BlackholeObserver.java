@@ -0,0 +1,33 @@
+package com.tbruyelle.rxpermissions2;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+
+final class BlackholeObserver implements Observer<Object> {
+
+    private final Blackhole mBlackhole;
+
+    BlackholeObserver(Blackhole blackhole) {
+        mBlackhole = blackhole;
+    }
+
+    @Override
+    public void onSubscribe(Disposable d) {
+    }
+
+    @Override
+    public void onNext(Object o) {
+        mBlackhole.consume(o);
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        throw new AssertionError(e);
+    }
+
+    @Override
+    public void onComplete() {
+    }
+}
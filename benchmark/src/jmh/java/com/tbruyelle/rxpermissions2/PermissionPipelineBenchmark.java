@@ -0,0 +1,86 @@
+package com.tbruyelle.rxpermissions2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.reactivex.Observable;
+
+/**
+ * Cost of a whole trigger through the request pipeline of RxPermissions, for permissions either
+ * already granted or answered by the system.
+ * <p>
+ * The fragment needs the Android framework, {@link StubPermissions} replaces it with a backend
+ * answering the grant checks and recording the requests. The requests go through the same
+ * pending subjects and result dispatch as with the fragment.
+ */
+@State(Scope.Thread)
+public class PermissionPipelineBenchmark {
+
+    @Param({"1", "4", "16"})
+    int count;
+
+    @Param({"granted", "pending"})
+    String state;
+
+    private String[] permissions;
+    private PermissionRequest request;
+    private StubPermissions rxPermissions;
+
+    @Setup
+    public void setup() {
+        permissions = new String[count];
+        for (int i = 0; i < count; i++) {
+            permissions[i] = "android.permission.PERMISSION_" + i;
+        }
+        request = StubPermissions.compile(permissions);
+        rxPermissions = new StubPermissions(state.equals("granted"));
+    }
+
+    @Benchmark
+    public PermissionRequest compile() {
+        return StubPermissions.compile(permissions);
+    }
+
+    @Benchmark
+    public void ensure(Blackhole blackhole) {
+        Observable.just(PermissionPipeline.TRIGGER)
+                .compose(rxPermissions.<Object>ensure(request))
+                .subscribe(new BlackholeObserver(blackhole));
+        rxPermissions.answer();
+    }
+
+    @Benchmark
+    public void ensureEach(Blackhole blackhole) {
+        Observable.just(PermissionPipeline.TRIGGER)
+                .compose(rxPermissions.<Object>ensureEach(request))
+                .subscribe(new BlackholeObserver(blackhole));
+        rxPermissions.answer();
+    }
+
+    @Benchmark
+    public void ensureEachCombined(Blackhole blackhole) {
+        Observable.just(PermissionPipeline.TRIGGER)
+                .compose(rxPermissions.<Object>ensureEachCombined(request))
+                .subscribe(new BlackholeObserver(blackhole));
+        rxPermissions.answer();
+    }
+
+    @Benchmark
+    public void requestEach(Blackhole blackhole) {
+        rxPermissions.requestEach(permissions)
+                .subscribe(new BlackholeObserver(blackhole));
+        rxPermissions.answer();
+    }
+
+    @Benchmark
+    public void requestSingle(Blackhole blackhole) {
+        rxPermissions.requestSingle(request)
+                .toObservable()
+                .subscribe(new BlackholeObserver(blackhole));
+        rxPermissions.answer();
+    }
+}
@@ -0,0 +1,54 @@
+package com.tbruyelle.rxpermissions2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cost of combining results and of dispatching the system answer to the pending subscribers.
+ */
+@State(Scope.Thread)
+public class PermissionResultBenchmark {
+
+    @Param({"1", "4", "16"})
+    int count;
+
+    private String[] permissions;
+    private int[] ids;
+    private List<Permission> results;
+
+    @Setup
+    public void setup() {
+        permissions = new String[count];
+        results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            permissions[i] = "android.permission.PERMISSION_" + i;
+            results.add(new Permission(permissions[i], i % 2 == 0, i % 3 == 0));
+        }
+        ids = PermissionInterner.intern(permissions);
+    }
+
+    @Benchmark
+    public Permission combinePermissionList() {
+        return new Permission(results);
+    }
+
+    @Benchmark
+    public void onResult(Blackhole blackhole) {
+        BlackholeObserver observer = new BlackholeObserver(blackhole);
+        PermissionResult[] subjects = new PermissionResult[count];
+        for (int i = 0; i < count; i++) {
+            subjects[i] = new PermissionResult(ids[i], null);
+            subjects[i].subscribe(observer);
+        }
+        for (int i = 0; i < count; i++) {
+            subjects[i].onResult(new Permission(permissions[i], true, false));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.tbruyelle.rxpermissions2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableOnSubscribe;
+import io.reactivex.ObservableSource;
+import io.reactivex.functions.Function;
+
+/**
+ * Cost of emitting the results of one trigger for already granted permissions, with the chain
+ * RxPermissions used to assemble (concat of just sources, then a flatMap wrapping each permission
+ * in a created source after its verification) and with {@link PermissionResults}.
+ */
+@State(Scope.Thread)
+public class RequestChainBenchmark {
+
+    // The permissions verified by the chain before, on the devices needing it
+    private static final String[] PROBED_PERMISSIONS = {
+            "android.permission.WRITE_EXTERNAL_STORAGE",
+            "android.permission.READ_EXTERNAL_STORAGE",
+            "android.permission.ACCESS_COARSE_LOCATION",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.CAMERA",
+            "android.permission.RECORD_AUDIO"
+    };
+
+    @Param({"1", "4", "16"})
+    int count;
+
+    // Whether the permissions go through a device quirk verification
+    @Param({"false", "true"})
+    boolean verified;
+
+    private String[] permissions;
+    private int[] ids;
+    private PermissionResults.Verifier verifier;
+
+    @Setup
+    public void setup() {
+        permissions = new String[count];
+        for (int i = 0; i < count; i++) {
+            permissions[i] = "android.permission.PERMISSION_" + i;
+        }
+        ids = PermissionInterner.intern(permissions);
+        verifier = !verified ? null : new PermissionResults.Verifier() {
+            @Override
+            public Permission verify(int id, Permission permission) {
+                return permission;
+            }
+        };
+    }
+
+    @Benchmark
+    public void flatMapChain(Blackhole blackhole) {
+        List<Observable<Permission>> list = new ArrayList<>(permissions.length);
+        // Always allocated, even with nothing to request
+        blackhole.consume(new ArrayList<String>());
+        for (String permission : permissions) {
+            list.add(Observable.just(new Permission(permission, true, false)));
+        }
+        Observable.concat(Observable.fromIterable(list))
+                .flatMap(new Function<Permission, ObservableSource<Permission>>() {
+                    @Override
+                    public ObservableSource<Permission> apply(Permission permission) {
+                        final Permission finalNewP = permission.granted
+                                ? new Permission(permission.name, specialHandle(permission.name), permission.shouldShowRequestPermissionRationale)
+                                : permission;
+                        return Observable.create(new ObservableOnSubscribe<Permission>() {
+                            @Override
+                            public void subscribe(ObservableEmitter<Permission> emitter) {
+                                emitter.onNext(finalNewP);
+                                emitter.onComplete();
+                            }
+                        });
+                    }
+                })
+                .subscribe(new BlackholeObserver(blackhole));
+    }
+
+    /**
+     * The checks of the chain before for a permission without hardware probe, the device being
+     * checked first.
+     */
+    private boolean specialHandle(String permission) {
+        if (!verified) {
+            return true;
+        }
+        for (String probed : PROBED_PERMISSIONS) {
+            if (permission.equals(probed)) {
+                // Would run the hardware probe, never the case here
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Benchmark
+    public void permissionResults(Blackhole blackhole) {
+        Object[] results = new Object[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            results[i] = new Permission(permissions[i], true, false);
+        }
+        new PermissionResults(results, ids, verifier)
+                .subscribe(new BlackholeObserver(blackhole));
+    }
+}
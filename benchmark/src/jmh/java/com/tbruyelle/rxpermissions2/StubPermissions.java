@@ -0,0 +1,114 @@
+package com.tbruyelle.rxpermissions2;
+
+/**
+ * The request pipeline of RxPermissions over a {@link PermissionBackend} standing for the
+ * fragment: the permissions are either all granted, or all requested and answered with
+ * {@link #answer()}.
+ */
+final class StubPermissions extends PermissionPipeline {
+
+    private final Backend mBackend;
+
+    StubPermissions(boolean granted) {
+        mBackend = new Backend(granted);
+    }
+
+    /**
+     * Delivers the system answer, all granted, to the permissions requested since the last one.
+     */
+    void answer() {
+        String[] requested = mBackend.mRequested;
+        if (requested == null) {
+            return;
+        }
+        mBackend.mRequested = null;
+        // PackageManager.PERMISSION_GRANTED
+        onRequestPermissionsResult(requested, new int[requested.length]);
+    }
+
+    @Override
+    PermissionBackend backend() {
+        return mBackend;
+    }
+
+    @Override
+    PermissionBackend peekBackend() {
+        return mBackend;
+    }
+
+    @Override
+    boolean isGranted(String permission) {
+        return mBackend.isGranted(permission);
+    }
+
+    @Override
+    boolean isRevoked(String permission) {
+        return mBackend.isRevoked(permission);
+    }
+
+    @Override
+    void log(String message) {
+    }
+
+    private static final class Backend implements PermissionBackend {
+
+        private final boolean mGranted;
+        private final PendingSubjects mSubjects = new PendingSubjects();
+        private final PermissionResult.Callback mReleaseCallback = new PermissionResult.Callback() {
+            @Override
+            public void onReleased(PermissionResult result) {
+                mSubjects.removeIfReleased(result);
+            }
+        };
+        private String[] mRequested;
+
+        Backend(boolean granted) {
+            mGranted = granted;
+        }
+
+        @Override
+        public boolean isGranted(String permission) {
+            return mGranted;
+        }
+
+        @Override
+        public boolean isRevoked(String permission) {
+            return false;
+        }
+
+        @Override
+        public boolean containsAll(PermissionSet permissions) {
+            return mSubjects.containsAll(permissions);
+        }
+
+        @Override
+        public PermissionResult acquireSubject(int id) {
+            return mSubjects.acquire(id);
+        }
+
+        @Override
+        public PermissionResult newSubject(int id) {
+            PermissionResult subject = new PermissionResult(id, mReleaseCallback);
+            subject.acquire();
+            mSubjects.put(id, subject);
+            return subject;
+        }
+
+        @Override
+        public void requestPermissions(String[] permissions) {
+            mRequested = permissions;
+        }
+
+        @Override
+        public void onRequestPermissionsResult(String[] permissions, int[] grantResults,
+                                               boolean[] shouldShowRequestPermissionRationale) {
+            for (int i = 0; i < permissions.length; i++) {
+                mSubjects.dispatch(permissions[i], grantResults[i] == 0, shouldShowRequestPermissionRationale[i]);
+            }
+        }
+
+        @Override
+        public void log(String message) {
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.tbruyelle.rxpermissions2.compiler;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeSpec;
+import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the implementation of the interfaces having {@link PermissionGroup} methods.
+ * <p>
+ * The permissions of each method are validated and deduplicated here, and compiled once in a
+ * static field of the generated class, shared by the methods requesting the same permissions.
+ * The platform permissions, {@code android.permission.*}, must be declared by
+ * {@code android.Manifest.permission} when it's on the compile classpath.
+ */
+public final class PermissionGroupProcessor extends AbstractProcessor {
+
+    private static final String PACKAGE = "com.tbruyelle.rxpermissions2";
+    private static final ClassName RX_PERMISSIONS = ClassName.get(PACKAGE, "RxPermissions");
+    private static final ClassName PERMISSION_REQUEST = ClassName.get(PACKAGE, "PermissionRequest");
+    private static final String PERMISSION = PACKAGE + ".Permission";
+    private static final String OBSERVABLE = "io.reactivex.Observable";
+    private static final String SINGLE = "io.reactivex.Single";
+    private static final String COMPLETABLE = "io.reactivex.Completable";
+    private static final String OBSERVABLE_TRANSFORMER = "io.reactivex.ObservableTransformer";
+    private static final String IMPL_SUFFIX = "_Impl";
+    private static final Pattern PERMISSION_NAME = Pattern.compile("[A-Za-z_][\\w$]*(\\.[A-Za-z_][\\w$]*)+");
+    private static final String MANIFEST_PERMISSION = "android.Manifest.permission";
+    private static final String PLATFORM_PERMISSION_PREFIX = "android.permission.";
+
+    private Types mTypes;
+    private Elements mElements;
+    private Filer mFiler;
+    private Messager mMessager;
+    // Values of the android.Manifest.permission constants, null if it's not on the classpath
+    private Set<String> mPlatformPermissions;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        mTypes = processingEnv.getTypeUtils();
+        mElements = processingEnv.getElementUtils();
+        mFiler = processingEnv.getFiler();
+        mMessager = processingEnv.getMessager();
+        mPlatformPermissions = platformPermissions();
+    }
+
+    private Set<String> platformPermissions() {
+        TypeElement manifest = mElements.getTypeElement(MANIFEST_PERMISSION);
+        if (manifest == null) {
+            return null;
+        }
+        Set<String> permissions = new HashSet<>();
+        for (VariableElement field : ElementFilter.fieldsIn(manifest.getEnclosedElements())) {
+            Object value = field.getConstantValue();
+            if (value instanceof String) {
+                permissions.add((String) value);
+            }
+        }
+        return permissions;
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(PermissionGroup.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        // Interfaces declaring annotated methods
+        Set<TypeElement> types = new LinkedHashSet<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(PermissionGroup.class)) {
+            Element enclosing = element.getEnclosingElement();
+            if (enclosing.getKind() != ElementKind.INTERFACE) {
+                error(element, "@PermissionGroup methods must be declared in an interface");
+                continue;
+            }
+            types.add((TypeElement) enclosing);
+        }
+        for (TypeElement type : types) {
+            generate(type);
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) {
+        // Including the ones inherited from the superinterfaces
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(mElements.getAllMembers(type))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            if (method.getAnnotation(PermissionGroup.class) == null) {
+                error(method.getEnclosingElement() == type ? method : type,
+                        "All the abstract methods of %s must have a @PermissionGroup, %s doesn't",
+                        type.getSimpleName(), method.getSimpleName());
+                return;
+            }
+            methods.add(method);
+        }
+
+        String packageName = mElements.getPackageOf(type).getQualifiedName().toString();
+        String implName = implName(type);
+        TypeSpec.Builder impl = TypeSpec.classBuilder(implName)
+                .addJavadoc("Generated by the RxPermissions compiler from {@link $T}, do not modify.\n", ClassName.get(type))
+                .addModifiers(Modifier.FINAL)
+                .addSuperinterface(ClassName.get(type))
+                .addOriginatingElement(type);
+        if (type.getModifiers().contains(Modifier.PUBLIC)) {
+            impl.addModifiers(Modifier.PUBLIC);
+        }
+        impl.addField(RX_PERMISSIONS, "rxPermissions", Modifier.PRIVATE, Modifier.FINAL);
+        impl.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(RX_PERMISSIONS, "rxPermissions")
+                .addStatement("this.rxPermissions = rxPermissions")
+                .build());
+
+        // Field name by deduplicated permissions, shared by the methods requesting the same ones
+        Map<List<String>, String> fields = new LinkedHashMap<>();
+        boolean valid = true;
+        for (ExecutableElement method : methods) {
+            List<String> permissions = permissions(method);
+            if (permissions == null) {
+                valid = false;
+                continue;
+            }
+            String field = fields.get(permissions);
+            if (field == null) {
+                field = fieldName(method, fields.values());
+                fields.put(permissions, field);
+                impl.addField(FieldSpec.builder(PERMISSION_REQUEST, field, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer(compileCall(permissions))
+                        .build());
+            }
+            MethodSpec implMethod = implement(type, method, field);
+            if (implMethod == null) {
+                valid = false;
+                continue;
+            }
+            impl.addMethod(implMethod);
+        }
+        if (!valid) {
+            return;
+        }
+        try {
+            JavaFile.builder(packageName, impl.build())
+                    .skipJavaLangImports(true)
+                    .build()
+                    .writeTo(mFiler);
+        } catch (IOException e) {
+            error(type, "Unable to write %s: %s", implName, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the validated and deduplicated permissions of the method, null if invalid.
+     */
+    private List<String> permissions(ExecutableElement method) {
+        PermissionGroup group = method.getAnnotation(PermissionGroup.class);
+        Set<String> permissions = new LinkedHashSet<>();
+        for (String permission : group.value()) {
+            if (permission == null || !PERMISSION_NAME.matcher(permission).matches()) {
+                error(method, "Invalid permission \"%s\"", permission);
+                return null;
+            }
+            if (mPlatformPermissions != null && permission.startsWith(PLATFORM_PERMISSION_PREFIX)
+                    && !mPlatformPermissions.contains(permission)) {
+                error(method, "Unknown permission \"%s\", not declared by %s", permission, MANIFEST_PERMISSION);
+                return null;
+            }
+            if (!permissions.add(permission)) {
+                mMessager.printMessage(Diagnostic.Kind.WARNING, "Duplicate permission " + permission, method);
+            }
+        }
+        if (permissions.isEmpty()) {
+            error(method, "@PermissionGroup requires at least one permission");
+            return null;
+        }
+        return new ArrayList<>(permissions);
+    }
+
+    private MethodSpec implement(TypeElement type, ExecutableElement method, String field) {
+        if (!method.getParameters().isEmpty()) {
+            error(method, "@PermissionGroup methods can't have parameters");
+            return null;
+        }
+        boolean combined = method.getAnnotation(PermissionGroup.class).combined();
+        // Resolved against the interface, for the methods of generic superinterfaces
+        DeclaredType declaredType = (DeclaredType) type.asType();
+        MethodSpec.Builder builder = MethodSpec.overriding(method, declaredType, mTypes);
+        TypeMirror returnType = ((ExecutableType) mTypes.asMemberOf(declaredType, method)).getReturnType();
+        if (returnType.getKind() != TypeKind.DECLARED) {
+            return unsupported(method, returnType);
+        }
+        String rawType = mTypes.erasure(returnType).toString();
+        String resultType = lastTypeArgument((DeclaredType) returnType);
+        if (rawType.equals(PERMISSION_REQUEST.toString())) {
+            return builder.addStatement("return $N", field).build();
+        } else if (rawType.equals(COMPLETABLE)) {
+            return builder.addStatement("return rxPermissions.requireAll($N)", field).build();
+        } else if (rawType.equals(OBSERVABLE) && Boolean.class.getName().equals(resultType)) {
+            return builder.addStatement("return rxPermissions.request($N)", field).build();
+        } else if (rawType.equals(OBSERVABLE) && PERMISSION.equals(resultType)) {
+            return builder.addStatement("return rxPermissions.$N($N)", combined ? "requestEachCombined" : "requestEach", field).build();
+        } else if (rawType.equals(SINGLE) && Boolean.class.getName().equals(resultType)) {
+            return builder.addStatement("return rxPermissions.requestSingle($N)", field).build();
+        } else if (rawType.equals(SINGLE) && PERMISSION.equals(resultType)) {
+            return builder.addStatement("return rxPermissions.requestCombinedSingle($N)", field).build();
+        } else if (rawType.equals(OBSERVABLE_TRANSFORMER) && Boolean.class.getName().equals(resultType)) {
+            return builder.addStatement("return rxPermissions.ensure($N)", field).build();
+        } else if (rawType.equals(OBSERVABLE_TRANSFORMER) && PERMISSION.equals(resultType)) {
+            return builder.addStatement("return rxPermissions.$N($N)", combined ? "ensureEachCombined" : "ensureEach", field).build();
+        }
+        return unsupported(method, returnType);
+    }
+
+    private MethodSpec unsupported(ExecutableElement method, TypeMirror returnType) {
+        error(method, "Unsupported @PermissionGroup return type %s", returnType);
+        return null;
+    }
+
+    private static String lastTypeArgument(DeclaredType type) {
+        List<? extends TypeMirror> arguments = type.getTypeArguments();
+        return arguments.isEmpty() ? null : arguments.get(arguments.size() - 1).toString();
+    }
+
+    private static CodeBlock compileCall(List<String> permissions) {
+        CodeBlock.Builder arguments = CodeBlock.builder();
+        for (int i = 0; i < permissions.size(); i++) {
+            arguments.add(i == 0 ? "$S" : ", $S", permissions.get(i));
+        }
+        return CodeBlock.of("$T.compile($L)", RX_PERMISSIONS, arguments.build());
+    }
+
+    /**
+     * Returns the constant name of the method, e.g. VIDEO_CALL for videoCall.
+     */
+    private static String fieldName(ExecutableElement method, Collection<String> taken) {
+        String name = method.getSimpleName().toString()
+                .replaceAll("([a-z0-9])([A-Z])", "$1_$2")
+                .toUpperCase(Locale.US);
+        String unique = name;
+        for (int i = 2; taken.contains(unique); i++) {
+            unique = name + "_" + i;
+        }
+        return unique;
+    }
+
+    private static String implName(TypeElement type) {
+        // Nested interfaces are prefixed by their enclosing types, e.g. Outer_Inner_Impl
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(IMPL_SUFFIX).toString();
+    }
+
+    private void error(Element element, String message, Object... args) {
+        mMessager.printMessage(Diagnostic.Kind.ERROR, String.format(message, args), element);
+    }
+}
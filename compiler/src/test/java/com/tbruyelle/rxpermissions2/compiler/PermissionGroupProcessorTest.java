@@ -0,0 +1,343 @@
+package com.tbruyelle.rxpermissions2.compiler;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+public class PermissionGroupProcessorTest {
+
+    // Stubs of the library and of the platform, the generated code compiles against them
+    private static final JavaFileObject RX_PERMISSIONS = JavaFileObjects.forSourceLines(
+            "com.tbruyelle.rxpermissions2.RxPermissions",
+            "package com.tbruyelle.rxpermissions2;",
+            "",
+            "import io.reactivex.Completable;",
+            "import io.reactivex.Observable;",
+            "import io.reactivex.ObservableTransformer;",
+            "import io.reactivex.Single;",
+            "",
+            "public class RxPermissions {",
+            "    public static PermissionRequest compile(String... permissions) { return null; }",
+            "    public Observable<Boolean> request(PermissionRequest permissions) { return null; }",
+            "    public Observable<Permission> requestEach(PermissionRequest permissions) { return null; }",
+            "    public Observable<Permission> requestEachCombined(PermissionRequest permissions) { return null; }",
+            "    public Single<Boolean> requestSingle(PermissionRequest permissions) { return null; }",
+            "    public Single<Permission> requestCombinedSingle(PermissionRequest permissions) { return null; }",
+            "    public Completable requireAll(PermissionRequest permissions) { return null; }",
+            "    public <T> ObservableTransformer<T, Boolean> ensure(PermissionRequest permissions) { return null; }",
+            "    public <T> ObservableTransformer<T, Permission> ensureEach(PermissionRequest permissions) { return null; }",
+            "    public <T> ObservableTransformer<T, Permission> ensureEachCombined(PermissionRequest permissions) { return null; }",
+            "}");
+    private static final JavaFileObject PERMISSION_REQUEST = JavaFileObjects.forSourceLines(
+            "com.tbruyelle.rxpermissions2.PermissionRequest",
+            "package com.tbruyelle.rxpermissions2;",
+            "",
+            "public final class PermissionRequest {",
+            "}");
+    private static final JavaFileObject PERMISSION = JavaFileObjects.forSourceLines(
+            "com.tbruyelle.rxpermissions2.Permission",
+            "package com.tbruyelle.rxpermissions2;",
+            "",
+            "public class Permission {",
+            "}");
+    private static final JavaFileObject MANIFEST = JavaFileObjects.forSourceLines(
+            "android.Manifest",
+            "package android;",
+            "",
+            "public final class Manifest {",
+            "    public static final class permission {",
+            "        public static final String CAMERA = \"android.permission.CAMERA\";",
+            "        public static final String RECORD_AUDIO = \"android.permission.RECORD_AUDIO\";",
+            "    }",
+            "}");
+
+    @Test
+    public void generatesImplementation() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.Permission;",
+                "import com.tbruyelle.rxpermissions2.PermissionRequest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Completable;",
+                "import io.reactivex.Observable;",
+                "import io.reactivex.ObservableTransformer;",
+                "",
+                "public interface AppPermissions {",
+                "    @PermissionGroup({Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO})",
+                "    Observable<Boolean> videoCall();",
+                "",
+                "    @PermissionGroup({Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO})",
+                "    Completable requireVideoCall();",
+                "",
+                "    @PermissionGroup(value = Manifest.permission.CAMERA, combined = true)",
+                "    <T> ObservableTransformer<T, Permission> camera();",
+                "",
+                "    @PermissionGroup(\"com.example.permission.CUSTOM\")",
+                "    PermissionRequest custom();",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).succeededWithoutWarnings();
+        assertThat(compilation).generatedSourceFile("test.AppPermissions_Impl").hasSourceEquivalentTo(
+                JavaFileObjects.forSourceLines(
+                        "test.AppPermissions_Impl",
+                        "package test;",
+                        "",
+                        "import com.tbruyelle.rxpermissions2.Permission;",
+                        "import com.tbruyelle.rxpermissions2.PermissionRequest;",
+                        "import com.tbruyelle.rxpermissions2.RxPermissions;",
+                        "import io.reactivex.Completable;",
+                        "import io.reactivex.Observable;",
+                        "import io.reactivex.ObservableTransformer;",
+                        "",
+                        "public final class AppPermissions_Impl implements AppPermissions {",
+                        "    private static final PermissionRequest VIDEO_CALL = RxPermissions.compile(",
+                        "            \"android.permission.CAMERA\", \"android.permission.RECORD_AUDIO\");",
+                        "",
+                        "    private static final PermissionRequest CAMERA = RxPermissions.compile(\"android.permission.CAMERA\");",
+                        "",
+                        "    private static final PermissionRequest CUSTOM = RxPermissions.compile(\"com.example.permission.CUSTOM\");",
+                        "",
+                        "    private final RxPermissions rxPermissions;",
+                        "",
+                        "    public AppPermissions_Impl(RxPermissions rxPermissions) {",
+                        "        this.rxPermissions = rxPermissions;",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public Observable<Boolean> videoCall() {",
+                        "        return rxPermissions.request(VIDEO_CALL);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public Completable requireVideoCall() {",
+                        "        return rxPermissions.requireAll(VIDEO_CALL);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public <T> ObservableTransformer<T, Permission> camera() {",
+                        "        return rxPermissions.ensureEachCombined(CAMERA);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public PermissionRequest custom() {",
+                        "        return CUSTOM;",
+                        "    }",
+                        "}"));
+    }
+
+    @Test
+    public void inheritedMethods_implemented() {
+        JavaFileObject base = JavaFileObjects.forSourceLines(
+                "test.BasePermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "public interface BasePermissions {",
+                "    @PermissionGroup(Manifest.permission.CAMERA)",
+                "    Observable<Boolean> camera();",
+                "}");
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Single;",
+                "",
+                "public interface AppPermissions extends BasePermissions {",
+                "    @PermissionGroup(Manifest.permission.RECORD_AUDIO)",
+                "    Single<Boolean> microphone();",
+                "}");
+
+        Compilation compilation = compile(base, source);
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).generatedSourceFile("test.AppPermissions_Impl").contentsAsUtf8String()
+                .contains("return rxPermissions.request(CAMERA);");
+    }
+
+    @Test
+    public void duplicatePermission_warns() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "interface AppPermissions {",
+                "    @PermissionGroup({Manifest.permission.CAMERA, Manifest.permission.CAMERA})",
+                "    Observable<Boolean> camera();",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).hadWarningContaining("Duplicate permission android.permission.CAMERA")
+                .inFile(source).onLine(9);
+        assertThat(compilation).generatedSourceFile("test.AppPermissions_Impl").contentsAsUtf8String()
+                .contains("RxPermissions.compile(\"android.permission.CAMERA\");");
+    }
+
+    @Test
+    public void unknownPlatformPermission_fails() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "interface AppPermissions {",
+                "    @PermissionGroup(\"android.permission.CAMRA\")",
+                "    Observable<Boolean> camera();",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Unknown permission \"android.permission.CAMRA\"")
+                .inFile(source).onLine(8);
+    }
+
+    @Test
+    public void invalidPermissionName_fails() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "interface AppPermissions {",
+                "    @PermissionGroup(\"CAMERA\")",
+                "    Observable<Boolean> camera();",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Invalid permission \"CAMERA\"");
+    }
+
+    @Test
+    public void methodWithParameters_fails() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "interface AppPermissions {",
+                "    @PermissionGroup(Manifest.permission.CAMERA)",
+                "    Observable<Boolean> camera(Object trigger);",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("@PermissionGroup methods can't have parameters");
+    }
+
+    @Test
+    public void unsupportedReturnType_fails() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "interface AppPermissions {",
+                "    @PermissionGroup(Manifest.permission.CAMERA)",
+                "    Observable<String> camera();",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Unsupported @PermissionGroup return type io.reactivex.Observable<java.lang.String>");
+    }
+
+    @Test
+    public void notInInterface_fails() {
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "abstract class AppPermissions {",
+                "    @PermissionGroup(Manifest.permission.CAMERA)",
+                "    abstract Observable<Boolean> camera();",
+                "}");
+
+        Compilation compilation = compile(source);
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("@PermissionGroup methods must be declared in an interface");
+    }
+
+    @Test
+    public void inheritedMethodWithoutAnnotation_fails() {
+        JavaFileObject base = JavaFileObjects.forSourceLines(
+                "test.BasePermissions",
+                "package test;",
+                "",
+                "import io.reactivex.Observable;",
+                "",
+                "interface BasePermissions {",
+                "    Observable<Boolean> location();",
+                "}");
+        JavaFileObject source = JavaFileObjects.forSourceLines(
+                "test.AppPermissions",
+                "package test;",
+                "",
+                "import android.Manifest;",
+                "import com.tbruyelle.rxpermissions2.annotations.PermissionGroup;",
+                "import io.reactivex.Observable;",
+                "",
+                "interface AppPermissions extends BasePermissions {",
+                "    @PermissionGroup(Manifest.permission.CAMERA)",
+                "    Observable<Boolean> camera();",
+                "}");
+
+        Compilation compilation = compile(base, source);
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("All the abstract methods of AppPermissions must have a @PermissionGroup, location doesn't")
+                .inFile(source).onLine(7);
+    }
+
+    private static Compilation compile(JavaFileObject... sources) {
+        JavaFileObject[] all = new JavaFileObject[sources.length + 4];
+        all[0] = RX_PERMISSIONS;
+        all[1] = PERMISSION_REQUEST;
+        all[2] = PERMISSION;
+        all[3] = MANIFEST;
+        System.arraycopy(sources, 0, all, 4, sources.length);
+        return javac()
+                .withProcessors(new PermissionGroupProcessor())
+                .compile(all);
+    }
+}
@@ -0,0 +1,51 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.annotation.TargetApi;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Verifies the permissions from their app op, with a single call to the {@link AppOpsManager}.
+ * Many ROMs deny a permission by its app op while the system reports it granted.
+ * <p>
+ * Can't tell for the permissions without app op, and before Android M.
+ */
+public final class AppOpsGrantVerifier implements GrantVerifier {
+
+    public static final AppOpsGrantVerifier INSTANCE = new AppOpsGrantVerifier();
+
+    private AppOpsGrantVerifier() {
+    }
+
+    @Nullable
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public Boolean verify(@NonNull Context context, @NonNull String permission) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        String op = AppOpsManager.permissionToOp(permission);
+        if (op == null) {
+            return null;
+        }
+        AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        if (appOps == null) {
+            return null;
+        }
+        // Unlike noteOpNoThrow, doesn't record an access of the op
+        switch (appOps.checkOpNoThrow(op, Process.myUid(), context.getPackageName())) {
+            case AppOpsManager.MODE_ALLOWED:
+                return true;
+            case AppOpsManager.MODE_IGNORED:
+            case AppOpsManager.MODE_ERRORED:
+                return false;
+            default:
+                // MODE_DEFAULT, the op follows the permission
+                return null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.tbruyelle.rxpermissions2;
+
+import io.reactivex.ObservableOperator;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Folds each group of {@code size} consecutive {@link Permission} into a single value, as they
+ * arrive, without collecting them.
+ */
+abstract class CombineOperator<R> implements ObservableOperator<R, Permission> {
+
+    private final int mSize;
+
+    CombineOperator(int size) {
+        mSize = size;
+    }
+
+    /**
+     * Returns the value emitted for a group of permissions.
+     *
+     * @param granted                              true if all the permissions are granted
+     * @param shouldShowRequestPermissionRationale true if any permission should show a rationale
+     */
+    abstract R combine(boolean granted, boolean shouldShowRequestPermissionRationale);
+
+    @Override
+    public Observer<? super Permission> apply(Observer<? super R> observer) {
+        return new CombineObserver<>(observer, this);
+    }
+
+    private static final class CombineObserver<R> implements Observer<Permission> {
+        private final Observer<? super R> actual;
+        private final CombineOperator<R> operator;
+        private int received;
+        private boolean granted = true;
+        private boolean shouldShowRequestPermissionRationale;
+
+        CombineObserver(Observer<? super R> actual, CombineOperator<R> operator) {
+            this.actual = actual;
+            this.operator = operator;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            actual.onSubscribe(d);
+        }
+
+        @Override
+        public void onNext(Permission permission) {
+            granted &= permission.granted;
+            shouldShowRequestPermissionRationale |= permission.shouldShowRequestPermissionRationale;
+            if (++received == operator.mSize) {
+                emit();
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            actual.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            // Like buffer, emit an incomplete group but never an empty one
+            if (received > 0) {
+                emit();
+            }
+            actual.onComplete();
+        }
+
+        private void emit() {
+            R value = operator.combine(granted, shouldShowRequestPermissionRationale);
+            received = 0;
+            granted = true;
+            shouldShowRequestPermissionRationale = false;
+            actual.onNext(value);
+        }
+    }
+}
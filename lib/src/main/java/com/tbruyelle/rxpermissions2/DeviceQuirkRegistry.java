@@ -0,0 +1,338 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.Manifest;
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Devices on which a permission reported granted by the system may actually be denied, and the
+ * {@link Probe} verifying it.
+ * <p>
+ * The rules are evaluated once for the current device, into a table of the probes by permission.
+ * The rules registered later override the previous ones, including the built-in ones.
+ */
+public final class DeviceQuirkRegistry {
+
+    /**
+     * Verifies that a permission reported granted by the system is actually granted.
+     * <p>
+     * May be slow, it runs on the probe scheduler if one is set, see
+     * {@link RxPermissions#setProbeScheduler(io.reactivex.Scheduler)}.
+     */
+    public interface Probe {
+        boolean isGranted(@NonNull Context context, @NonNull String permission);
+    }
+
+    /**
+     * Probe whose result doesn't depend on the permission it verifies. It runs once for all the
+     * permissions of a request it verifies, and its result is cached for each of them, see
+     * {@link RxPermissions#setProbeCacheTtl(long, java.util.concurrent.TimeUnit)}.
+     */
+    public abstract static class SharedProbe implements Probe {
+    }
+
+    /**
+     * Probe verifying several permissions from one check, for instance from a state they all
+     * depend on. It runs once for all the permissions of a request it verifies which are already
+     * granted when requested, the ones granted by the user are verified on their own.
+     */
+    public abstract static class BatchProbe implements Probe {
+        /**
+         * Returns whether each of the permissions is actually granted, in the same order.
+         */
+        @NonNull
+        public abstract boolean[] areGranted(@NonNull Context context, @NonNull String[] permissions);
+
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            return areGranted(context, new String[]{permission})[0];
+        }
+    }
+
+    /**
+     * Checks that the external storage is mounted and that its directory is readable, or writable
+     * for {@link Manifest.permission#WRITE_EXTERNAL_STORAGE}. Only reads metadata, both accesses
+     * at once, and the accesses found granted are cached until the process restarts.
+     */
+    public static final Probe STORAGE_PROBE = new BatchProbe() {
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            return RxPermissionUtil.isStorageAccessible(!Manifest.permission.READ_EXTERNAL_STORAGE.equals(permission));
+        }
+
+        @NonNull
+        @Override
+        public boolean[] areGranted(@NonNull Context context, @NonNull String[] permissions) {
+            int access = RxPermissionUtil.getStorageAccess();
+            boolean[] granted = new boolean[permissions.length];
+            for (int i = 0; i < permissions.length; i++) {
+                int required = Manifest.permission.READ_EXTERNAL_STORAGE.equals(permissions[i])
+                        ? RxPermissionUtil.STORAGE_READABLE : RxPermissionUtil.STORAGE_WRITABLE;
+                granted[i] = (access & required) != 0;
+            }
+            return granted;
+        }
+    };
+
+    /**
+     * Creates then deletes a file in the external storage. Slower than {@link #STORAGE_PROBE},
+     * for the devices on which the directory metadata can't be trusted.
+     */
+    public static final Probe STRICT_STORAGE_PROBE = new SharedProbe() {
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            return RxPermissionUtil.isStorage();
+        }
+    };
+
+    /**
+     * Reads the last known location.
+     */
+    public static final Probe LOCATION_PROBE = new SharedProbe() {
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            return RxPermissionUtil.isLocation(context);
+        }
+    };
+
+    /**
+     * Opens the camera.
+     */
+    public static final Probe CAMERA_PROBE = new SharedProbe() {
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            return RxPermissionUtil.isCamera();
+        }
+    };
+
+    /**
+     * Starts an audio recording.
+     */
+    public static final Probe RECORD_PROBE = new SharedProbe() {
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            return RxPermissionUtil.isRecord();
+        }
+    };
+
+    private static final String[] BUILT_IN_BRANDS = {
+            "smartisan", "xiaomi", "oppo", "vivo", "lenovo", "meizu",
+            "huawei", "honor", "realme", "oneplus"
+    };
+
+    private static final List<Rule> sRules = new ArrayList<>();
+    // Grant verifiers by permission id, run before the probes
+    private static GrantVerifier[] sVerifiers = new GrantVerifier[0];
+    // Evaluated on first use, reset when a rule is registered
+    private static volatile Table sTable;
+
+    static {
+        registerBuiltIns();
+    }
+
+    private DeviceQuirkRegistry() {
+    }
+
+    private static void registerBuiltIns() {
+        for (String brand : BUILT_IN_BRANDS) {
+            register(brand, STORAGE_PROBE,
+                    Manifest.permission.WRITE_EXTERNAL_STORAGE, Manifest.permission.READ_EXTERNAL_STORAGE);
+            register(brand, LOCATION_PROBE,
+                    Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.ACCESS_FINE_LOCATION);
+            register(brand, CAMERA_PROBE, Manifest.permission.CAMERA);
+            register(brand, RECORD_PROBE, Manifest.permission.RECORD_AUDIO);
+        }
+    }
+
+    /**
+     * Drops the registered rules and grant verifiers, only the built-in rules are kept.
+     */
+    @VisibleForTesting
+    static void reset() {
+        synchronized (sRules) {
+            sRules.clear();
+            sVerifiers = new GrantVerifier[0];
+            registerBuiltIns();
+            sTable = null;
+        }
+    }
+
+    /**
+     * Same as {@link #register(String, int, int, Probe, String...)} for all the SDK versions.
+     */
+    public static void register(@Nullable String brand, @Nullable Probe probe, @NonNull String... permissions) {
+        register(brand, 0, Integer.MAX_VALUE, probe, permissions);
+    }
+
+    /**
+     * Verifies the permissions with the probe on the devices of the brand, for the SDK versions
+     * in the range.
+     *
+     * @param brand  the {@link Build#BRAND}, case insensitive, or null for all the brands
+     * @param minSdk the first SDK version, inclusive
+     * @param maxSdk the last SDK version, inclusive
+     * @param probe  the probe, or null to not verify the permissions
+     */
+    public static void register(@Nullable String brand, int minSdk, int maxSdk, @Nullable Probe probe,
+                                @NonNull String... permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("DeviceQuirkRegistry.register requires at least one input permission");
+        }
+        if (minSdk > maxSdk) {
+            throw new IllegalArgumentException("DeviceQuirkRegistry.register requires minSdk <= maxSdk");
+        }
+        Rule rule = new Rule(brand != null ? brand.toLowerCase(Locale.US) : null, minSdk, maxSdk, probe,
+                PermissionInterner.intern(permissions));
+        synchronized (sRules) {
+            sRules.add(rule);
+            sTable = null;
+        }
+    }
+
+    /**
+     * Verifies the permissions with the verifier first, their probe only runs when the verifier
+     * can't tell. Only applies to the permissions having a probe on this device.
+     *
+     * @param verifier the verifier, for instance {@link AppOpsGrantVerifier#INSTANCE}, or null
+     *                 to only run the probes
+     */
+    public static void setGrantVerifier(@Nullable GrantVerifier verifier, @NonNull String... permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("DeviceQuirkRegistry.setGrantVerifier requires at least one input permission");
+        }
+        int[] ids = PermissionInterner.intern(permissions);
+        synchronized (sRules) {
+            for (int id : ids) {
+                if (id >= sVerifiers.length) {
+                    sVerifiers = Arrays.copyOf(sVerifiers, id + 1);
+                }
+                sVerifiers[id] = verifier;
+            }
+            sTable = null;
+        }
+    }
+
+    /**
+     * Returns the probe of the permission on this device, null if it doesn't need one.
+     */
+    @Nullable
+    static Probe probeFor(int id) {
+        Probe[] probes = table().probes;
+        return id >= 0 && id < probes.length ? probes[id] : null;
+    }
+
+    /**
+     * Returns true if the result of the probe doesn't depend on the permission, so that it can
+     * be run once for all the permissions it verifies.
+     */
+    static boolean isShared(Probe probe) {
+        return probe instanceof SharedProbe;
+    }
+
+    /**
+     * Returns true if any of the permissions has a probe on this device.
+     */
+    static boolean hasProbe(PermissionSet permissions) {
+        return permissions.intersects(table().probedIds);
+    }
+
+    private static Table table() {
+        Table table = sTable;
+        if (table == null) {
+            synchronized (sRules) {
+                table = sTable;
+                if (table == null) {
+                    table = evaluate(Build.BRAND, Build.VERSION.SDK_INT);
+                    sTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    private static Table evaluate(String deviceBrand, int sdk) {
+        String brand = deviceBrand != null ? deviceBrand.toLowerCase(Locale.US) : "";
+        Probe[] probes = new Probe[0];
+        for (Rule rule : sRules) {
+            if (!rule.matches(brand, sdk)) {
+                continue;
+            }
+            for (int id : rule.ids) {
+                if (id >= probes.length) {
+                    probes = Arrays.copyOf(probes, id + 1);
+                }
+                probes[id] = rule.probe;
+            }
+        }
+        long[] probedIds = new long[(probes.length >>> 6) + 1];
+        for (int id = 0; id < probes.length; id++) {
+            if (probes[id] == null) {
+                continue;
+            }
+            probedIds[id >>> 6] |= 1L << id;
+            if (id < sVerifiers.length && sVerifiers[id] != null) {
+                probes[id] = new VerifiedProbe(sVerifiers[id], probes[id]);
+            }
+        }
+        return new Table(probes, probedIds);
+    }
+
+    /**
+     * Runs the probe only when the verifier can't tell.
+     */
+    private static final class VerifiedProbe implements Probe {
+        private final GrantVerifier verifier;
+        private final Probe fallback;
+
+        VerifiedProbe(GrantVerifier verifier, Probe fallback) {
+            this.verifier = verifier;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean isGranted(@NonNull Context context, @NonNull String permission) {
+            Boolean granted = verifier.verify(context, permission);
+            return granted != null ? granted : fallback.isGranted(context, permission);
+        }
+    }
+
+    private static final class Rule {
+        final String brand;
+        final int minSdk;
+        final int maxSdk;
+        final Probe probe;
+        final int[] ids;
+
+        Rule(String brand, int minSdk, int maxSdk, Probe probe, int[] ids) {
+            this.brand = brand;
+            this.minSdk = minSdk;
+            this.maxSdk = maxSdk;
+            this.probe = probe;
+            this.ids = ids;
+        }
+
+        boolean matches(String brand, int sdk) {
+            return (this.brand == null || this.brand.equals(brand)) && sdk >= minSdk && sdk <= maxSdk;
+        }
+    }
+
+    private static final class Table {
+        // Probes by permission id
+        final Probe[] probes;
+        // Bitset of the ids having a probe
+        final long[] probedIds;
+
+        Table(Probe[] probes, long[] probedIds) {
+            this.probes = probes;
+            this.probedIds = probedIds;
+        }
+    }
+}
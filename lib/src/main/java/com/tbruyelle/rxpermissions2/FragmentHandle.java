@@ -0,0 +1,320 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Resolves the {@link RxPermissionsFragment} of a {@link FragmentManager}, once for all the
+ * {@link RxPermissions} instances sharing it.
+ * <p>
+ * Once resolved, {@link #get()} is a volatile read. The handle is kept as long as its
+ * FragmentManager, so that the instances created on each use of a host find it resolved already.
+ */
+class FragmentHandle implements RxPermissions.Lazy<RxPermissionsFragment> {
+
+    // Handles by FragmentManager. The handles only hold their FragmentManager and host weakly, so
+    // that a handle is dropped with its key.
+    private static final Map<FragmentManager, FragmentHandle> sHandles = new WeakHashMap<>();
+    // Last handle returned, so that the instances created again and again from the same host
+    // don't take the lock
+    private static volatile FragmentHandle sLastHandle;
+    // Applications notifying the resumes of their activities to the handles
+    private static final Map<Application, Boolean> sObservedApplications = new WeakHashMap<>();
+
+    private final WeakReference<FragmentManager> mFragmentManager;
+    // The FragmentActivity or Fragment owning the FragmentManager
+    private final WeakReference<Object> mHost;
+    private volatile RxPermissionsFragment mFragment;
+    // True once the fragment has been looked up and not found. Until this handle attaches it,
+    // no other can: a retained fragment is restored before the host is created.
+    private volatile boolean mFragmentMissing;
+    private volatile boolean mAsyncAttach;
+    // Settings applied to the fragment once attached, so that setting them doesn't attach it
+    private volatile boolean mLogging;
+    private volatile boolean mRequestCoalescing;
+    private volatile long mPendingRequestTimeoutMillis;
+    private volatile GrantStateCache mGrantStateCache = new GrantStateCache();
+    private final PermissionWatcher mWatcher = new PermissionWatcher(this);
+
+    FragmentHandle(@NonNull FragmentManager fragmentManager, @NonNull Object host) {
+        mFragmentManager = new WeakReference<>(fragmentManager);
+        mHost = new WeakReference<>(host);
+    }
+
+    @NonNull
+    static FragmentHandle of(@NonNull FragmentManager fragmentManager, @NonNull Object host) {
+        FragmentHandle handle = sLastHandle;
+        if (handle != null && handle.mFragmentManager.get() == fragmentManager) {
+            return handle;
+        }
+        synchronized (sHandles) {
+            handle = sHandles.get(fragmentManager);
+            if (handle == null) {
+                handle = new FragmentHandle(fragmentManager, host);
+                sHandles.put(fragmentManager, handle);
+                observeResumes(handle.hostContext());
+            }
+            sLastHandle = handle;
+            return handle;
+        }
+    }
+
+    /**
+     * Registers the activity lifecycle callbacks of the application, once.
+     */
+    private static void observeResumes(Context context) {
+        if (context == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        Application application = (Application) context.getApplicationContext();
+        if (application != null && sObservedApplications.put(application, Boolean.TRUE) == null) {
+            application.registerActivityLifecycleCallbacks(new ResumeCallbacks());
+        }
+    }
+
+    @Override
+    public RxPermissionsFragment get() {
+        RxPermissionsFragment fragment = mFragment;
+        if (fragment == null) {
+            synchronized (this) {
+                fragment = mFragment;
+                if (fragment == null) {
+                    fragment = attach();
+                    mFragment = fragment;
+                }
+            }
+        }
+        return fragment;
+    }
+
+    /**
+     * Attaches the fragment with an asynchronous commit instead of committing it right away, see
+     * {@link RxPermissions#setAsyncAttach(boolean)}. Only applies to a fragment not attached yet.
+     */
+    void setAsyncAttach(boolean asyncAttach) {
+        mAsyncAttach = asyncAttach;
+    }
+
+    /**
+     * Sets the logging of the fragment, without attaching it.
+     */
+    void setLogging(boolean logging) {
+        mLogging = logging;
+        RxPermissionsFragment fragment = mFragment;
+        if (fragment != null) {
+            fragment.setLogging(logging);
+        }
+    }
+
+    /**
+     * Sets the request coalescing of the fragment, without attaching it.
+     */
+    void setRequestCoalescing(boolean enabled) {
+        mRequestCoalescing = enabled;
+        RxPermissionsFragment fragment = mFragment;
+        if (fragment != null) {
+            fragment.setRequestCoalescing(enabled);
+        }
+    }
+
+    /**
+     * Sets the pending request timeout of the fragment, without attaching it.
+     */
+    void setPendingRequestTimeout(long timeoutMillis) {
+        mPendingRequestTimeoutMillis = timeoutMillis;
+        RxPermissionsFragment fragment = mFragment;
+        if (fragment != null) {
+            fragment.setPendingRequestTimeout(timeoutMillis);
+        }
+    }
+
+    /**
+     * Returns the grant state cache, shared with the fragment once attached.
+     */
+    GrantStateCache getGrantStateCache() {
+        return mGrantStateCache;
+    }
+
+    /**
+     * Returns the fragment if it's already attached or being attached, without attaching it.
+     */
+    RxPermissionsFragment peek() {
+        if (mFragment == null) {
+            if (mFragmentMissing) {
+                return null;
+            }
+            if (find() == null) {
+                mFragmentMissing = true;
+                return null;
+            }
+        }
+        return get();
+    }
+
+    PermissionWatcher getWatcher() {
+        return mWatcher;
+    }
+
+    void log(String message) {
+        if (mLogging) {
+            Log.d(RxPermissions.TAG, message);
+        }
+    }
+
+    private RxPermissionsFragment attach() {
+        RxPermissionsFragment rxPermissionsFragment = find();
+        boolean isNewInstance = rxPermissionsFragment == null;
+        if (isNewInstance) {
+            rxPermissionsFragment = new RxPermissionsFragment();
+            FragmentTransaction transaction = fragmentManager()
+                    .beginTransaction()
+                    .add(rxPermissionsFragment, RxPermissions.TAG);
+            if (mAsyncAttach) {
+                // Until attached, the fragment checks the permissions from the host and queues
+                // the requests
+                rxPermissionsFragment.setHostContext(hostContext());
+                transaction.commit();
+            } else {
+                transaction.commitNow();
+            }
+        }
+        // A fragment retained through a configuration change keeps its settings, unless they
+        // have been set on this handle
+        if (isNewInstance || mLogging) {
+            rxPermissionsFragment.setLogging(mLogging);
+        }
+        if (isNewInstance || mRequestCoalescing) {
+            rxPermissionsFragment.setRequestCoalescing(mRequestCoalescing);
+        }
+        if (isNewInstance || mPendingRequestTimeoutMillis > 0) {
+            rxPermissionsFragment.setPendingRequestTimeout(mPendingRequestTimeoutMillis);
+        }
+        if (isNewInstance || mGrantStateCache.isEnabled()) {
+            rxPermissionsFragment.setGrantStateCache(mGrantStateCache);
+        } else {
+            mGrantStateCache = rxPermissionsFragment.getGrantStateCache();
+        }
+        return rxPermissionsFragment;
+    }
+
+    /**
+     * Returns the activity of the host, null if it's a fragment not attached yet.
+     */
+    Activity hostActivity() {
+        Object host = mHost.get();
+        if (host instanceof Fragment) {
+            return ((Fragment) host).getActivity();
+        }
+        return (Activity) host;
+    }
+
+    private boolean isHostedBy(Activity activity) {
+        Object host = mHost.get();
+        if (host instanceof Fragment) {
+            return ((Fragment) host).getActivity() == activity;
+        }
+        // The host may be a wrapper of the activity, they share the FragmentManager
+        return activity instanceof FragmentActivity
+                && ((FragmentActivity) activity).getSupportFragmentManager() == mFragmentManager.get();
+    }
+
+    /**
+     * Refreshes what the user may have changed from the system settings while the host was
+     * paused.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void onHostResumed() {
+        final Activity activity = hostActivity();
+        if (activity == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        mGrantStateCache.revalidate(activity);
+        mWatcher.check(activity);
+    }
+
+    /**
+     * Returns the context of the host, null if it's a fragment not attached yet.
+     */
+    Context hostContext() {
+        Object host = mHost.get();
+        if (host instanceof Fragment) {
+            return ((Fragment) host).getContext();
+        }
+        return (Context) host;
+    }
+
+    private FragmentManager fragmentManager() {
+        FragmentManager fragmentManager = mFragmentManager.get();
+        if (fragmentManager == null) {
+            throw new IllegalStateException("RxPermissions can't attach its fragment once the host has been destroyed.");
+        }
+        return fragmentManager;
+    }
+
+    private RxPermissionsFragment find() {
+        FragmentManager fragmentManager = mFragmentManager.get();
+        return fragmentManager != null
+                ? (RxPermissionsFragment) fragmentManager.findFragmentByTag(RxPermissions.TAG) : null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static final class ResumeCallbacks implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            // The user may have changed the permissions from the system settings.
+            ProbeResultCache.INSTANCE.invalidate();
+            List<FragmentHandle> handles = new ArrayList<>();
+            synchronized (sHandles) {
+                for (FragmentHandle handle : sHandles.values()) {
+                    if (handle.isHostedBy(activity)) {
+                        handles.add(handle);
+                    }
+                }
+            }
+            for (FragmentHandle handle : handles) {
+                handle.onHostResumed();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Grant states already known, to avoid the IPC behind checkSelfPermission and
+ * isPermissionRevokedByPolicy, see {@link RxPermissions#setGrantStateCache(boolean)}.
+ * <p>
+ * Read and written from the trigger threads and from the main thread.
+ */
+final class GrantStateCache {
+
+    private volatile boolean mEnabled;
+    private final Map<String, Boolean> mGrantedStates = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> mRevokedStates = new ConcurrentHashMap<>();
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            mGrantedStates.clear();
+            mRevokedStates.clear();
+        }
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    boolean isGranted(Context context, String permission) {
+        if (!mEnabled) {
+            return RxPermissionsFragment.checkGranted(context, permission);
+        }
+        Boolean granted = mGrantedStates.get(permission);
+        if (granted != null) {
+            mHits.incrementAndGet();
+            return granted;
+        }
+        mMisses.incrementAndGet();
+        boolean checked = RxPermissionsFragment.checkGranted(context, permission);
+        mGrantedStates.put(permission, checked);
+        return checked;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    boolean isRevoked(Context context, String permission) {
+        if (!mEnabled) {
+            return RxPermissionsFragment.checkRevoked(context, permission);
+        }
+        Boolean revoked = mRevokedStates.get(permission);
+        if (revoked != null) {
+            mHits.incrementAndGet();
+            return revoked;
+        }
+        mMisses.incrementAndGet();
+        boolean checked = RxPermissionsFragment.checkRevoked(context, permission);
+        mRevokedStates.put(permission, checked);
+        return checked;
+    }
+
+    /**
+     * Updates the grant state of a permission checked or requested outside of this cache.
+     */
+    void putGranted(String permission, boolean granted) {
+        if (mEnabled) {
+            mGrantedStates.put(permission, granted);
+        }
+    }
+
+    /**
+     * Refreshes in one pass all the cached states, the user may have changed them from the
+     * system settings while the host was paused.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    void revalidate(Context context) {
+        if (!mEnabled) {
+            return;
+        }
+        for (Map.Entry<String, Boolean> entry : mGrantedStates.entrySet()) {
+            entry.setValue(RxPermissionsFragment.checkGranted(context, entry.getKey()));
+        }
+        for (Map.Entry<String, Boolean> entry : mRevokedStates.entrySet()) {
+            entry.setValue(RxPermissionsFragment.checkRevoked(context, entry.getKey()));
+        }
+    }
+
+    int getHits() {
+        return mHits.get();
+    }
+
+    int getMisses() {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,21 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Verifies that a permission reported granted by the system is actually granted, without the
+ * cost of a hardware {@link DeviceQuirkRegistry.Probe}.
+ *
+ * @see DeviceQuirkRegistry#setGrantVerifier(GrantVerifier, String...)
+ */
+public interface GrantVerifier {
+
+    /**
+     * Returns whether the permission is actually granted, or null if it can't be told, in which
+     * case the probe of the permission is run.
+     */
+    @Nullable
+    Boolean verify(@NonNull Context context, @NonNull String permission);
+}
@@ -0,0 +1,79 @@
+package com.tbruyelle.rxpermissions2;
+
+import java.util.Arrays;
+
+/**
+ * Current requests by permission id, with the bitset of their ids. Accessed from the trigger
+ * threads, and from the main thread when the results arrive.
+ */
+final class PendingSubjects {
+
+    private PermissionResult[] mResults = new PermissionResult[32];
+    private long[] mIds = new long[1];
+
+    synchronized PermissionResult get(int id) {
+        return id < mResults.length ? mResults[id] : null;
+    }
+
+    synchronized boolean containsAll(PermissionSet permissions) {
+        return permissions.isSubsetOf(mIds);
+    }
+
+    synchronized PermissionResult acquire(int id) {
+        PermissionResult subject = get(id);
+        if (subject != null) {
+            subject.acquire();
+        }
+        return subject;
+    }
+
+    synchronized void put(int id, PermissionResult subject) {
+        if (id >= mResults.length) {
+            mResults = Arrays.copyOf(mResults, Math.max(id + 1, mResults.length * 2));
+        }
+        int word = id >>> 6;
+        if (word >= mIds.length) {
+            mIds = Arrays.copyOf(mIds, word + 1);
+        }
+        mResults[id] = subject;
+        mIds[word] |= 1L << id;
+    }
+
+    synchronized PermissionResult take(int id) {
+        PermissionResult subject = get(id);
+        if (subject != null) {
+            remove(id);
+        }
+        return subject;
+    }
+
+    /**
+     * Emits the result of the permission to its current request, which is removed. Returns false
+     * if there's none.
+     */
+    boolean dispatch(String permission, boolean granted, boolean shouldShowRequestPermissionRationale) {
+        int id = PermissionInterner.idOf(permission);
+        PermissionResult subject = id < 0 ? null : take(id);
+        if (subject == null) {
+            return false;
+        }
+        subject.onResult(new Permission(permission, granted, shouldShowRequestPermissionRationale));
+        return true;
+    }
+
+    /**
+     * Removes the subject unless it has been acquired again, or answered, since released.
+     */
+    synchronized boolean removeIfReleased(PermissionResult subject) {
+        if (get(subject.id) != subject || subject.isHeld() || subject.hasResult()) {
+            return false;
+        }
+        remove(subject.id);
+        return true;
+    }
+
+    private void remove(int id) {
+        mResults[id] = null;
+        mIds[id >>> 6] &= ~(1L << id);
+    }
+}
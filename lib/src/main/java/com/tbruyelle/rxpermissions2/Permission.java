@@ -2,11 +2,6 @@ package com.tbruyelle.rxpermissions2;
 
 import java.util.List;
 
-import io.reactivex.Observable;
-import io.reactivex.functions.BiConsumer;
-import io.reactivex.functions.Function;
-import io.reactivex.functions.Predicate;
-
 public class Permission {
     public final String name;
     public final boolean granted;
@@ -60,41 +55,31 @@ public class Permission {
     }
 
     private String combineName(List<Permission> permissions) {
-        return Observable.fromIterable(permissions)
-                .map(new Function<Permission, String>() {
-                    @Override
-                    public String apply(Permission permission) throws Exception {
-                        return permission.name;
-                    }
-                }).collectInto(new StringBuilder(), new BiConsumer<StringBuilder, String>() {
-                    @Override
-                    public void accept(StringBuilder s, String s2) throws Exception {
-                        if (s.length() == 0) {
-                            s.append(s2);
-                        } else {
-                            s.append(", ").append(s2);
-                        }
-                    }
-                }).blockingGet().toString();
+        StringBuilder s = new StringBuilder();
+        for (Permission permission : permissions) {
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+            s.append(permission.name);
+        }
+        return s.toString();
     }
 
-    private Boolean combineGranted(List<Permission> permissions) {
-        return Observable.fromIterable(permissions)
-                .all(new Predicate<Permission>() {
-                    @Override
-                    public boolean test(Permission permission) throws Exception {
-                        return permission.granted;
-                    }
-                }).blockingGet();
+    private boolean combineGranted(List<Permission> permissions) {
+        for (Permission permission : permissions) {
+            if (!permission.granted) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private Boolean combineShouldShowRequestPermissionRationale(List<Permission> permissions) {
-        return Observable.fromIterable(permissions)
-                .any(new Predicate<Permission>() {
-                    @Override
-                    public boolean test(Permission permission) throws Exception {
-                        return permission.shouldShowRequestPermissionRationale;
-                    }
-                }).blockingGet();
+    private boolean combineShouldShowRequestPermissionRationale(List<Permission> permissions) {
+        for (Permission permission : permissions) {
+            if (permission.shouldShowRequestPermissionRationale) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,41 @@
+package com.tbruyelle.rxpermissions2;
+
+/**
+ * What {@link PermissionPipeline} needs from the system: the grant checks, the current requests
+ * and the permission dialog. Implemented by {@link RxPermissionsFragment}.
+ */
+interface PermissionBackend {
+
+    boolean isGranted(String permission);
+
+    boolean isRevoked(String permission);
+
+    /**
+     * Returns true if all the permissions have a current request.
+     */
+    boolean containsAll(PermissionSet permissions);
+
+    /**
+     * Returns the current request of the permission, acquired by the caller, or null if there's
+     * none.
+     */
+    PermissionResult acquireSubject(int id);
+
+    /**
+     * Registers a new current request of the permission, acquired by the caller.
+     */
+    PermissionResult newSubject(int id);
+
+    /**
+     * Asks the system for the permissions, the answer is delivered to
+     * {@link #onRequestPermissionsResult(String[], int[], boolean[])}.
+     */
+    void requestPermissions(String[] permissions);
+
+    /**
+     * Emits the system answer to the current requests of the permissions.
+     */
+    void onRequestPermissionsResult(String[] permissions, int[] grantResults, boolean[] shouldShowRequestPermissionRationale);
+
+    void log(String message);
+}
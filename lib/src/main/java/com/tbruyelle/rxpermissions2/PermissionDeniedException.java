@@ -0,0 +1,18 @@
+package com.tbruyelle.rxpermissions2;
+
+/**
+ * Signals that at least one of the permissions required by
+ * {@link RxPermissions#requireAll(String...)} has been denied.
+ */
+public class PermissionDeniedException extends RuntimeException {
+
+    /**
+     * The combined result of the required permissions.
+     */
+    public final Permission permission;
+
+    public PermissionDeniedException(Permission permission) {
+        super("Permission denied: " + permission.name);
+        this.permission = permission;
+    }
+}
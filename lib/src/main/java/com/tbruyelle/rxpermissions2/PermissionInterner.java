@@ -0,0 +1,68 @@
+package com.tbruyelle.rxpermissions2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a dense int id to each permission name, for the whole process.
+ * <p>
+ * Ids are never reused, so that they can index arrays and bitsets, see {@link PermissionSet}.
+ */
+final class PermissionInterner {
+
+    private static final Map<String, Integer> sIds = new ConcurrentHashMap<>();
+    private static final Object sLock = new Object();
+    // Reassigned after each write, so that the names are safely published to all threads.
+    private static volatile String[] sNames = new String[32];
+    private static int sCount;
+
+    private PermissionInterner() {
+    }
+
+    /**
+     * Returns the id of the permission, assigning a new one on first use.
+     */
+    static int intern(String permission) {
+        Integer id = sIds.get(permission);
+        if (id != null) {
+            return id;
+        }
+        synchronized (sLock) {
+            id = sIds.get(permission);
+            if (id != null) {
+                return id;
+            }
+            int newId = sCount++;
+            String[] names = sNames;
+            if (newId == names.length) {
+                String[] grown = new String[names.length * 2];
+                System.arraycopy(names, 0, grown, 0, names.length);
+                names = grown;
+            }
+            names[newId] = permission;
+            sNames = names;
+            sIds.put(permission, newId);
+            return newId;
+        }
+    }
+
+    static int[] intern(String[] permissions) {
+        int[] ids = new int[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            ids[i] = intern(permissions[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the id of the permission, or -1 if it has never been interned.
+     */
+    static int idOf(String permission) {
+        Integer id = sIds.get(permission);
+        return id == null ? -1 : id;
+    }
+
+    static String name(int id) {
+        return sNames[id];
+    }
+}
@@ -0,0 +1,587 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbruyelle.rxpermissions2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.reactivestreams.Publisher;
+
+import io.reactivex.BackpressureOverflowStrategy;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.CompletableSource;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableTransformer;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Single;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Function;
+
+/**
+ * The permission requests of {@link RxPermissions}, from the triggers to the results. Free of
+ * Android types, the system being reached through a {@link PermissionBackend}, so that it also
+ * runs on the plain JVM.
+ */
+abstract class PermissionPipeline {
+
+    static final Object TRIGGER = new Object();
+    static final int DEFAULT_TRIGGER_BUFFER_SIZE = 16;
+
+    private int mTriggerBufferSize = DEFAULT_TRIGGER_BUFFER_SIZE;
+    private boolean mTriggerDeduplication;
+    // In-flight requests by requested permissions, only used with the trigger deduplication.
+    private final ConcurrentMap<PermissionRequest, Observable<Permission>> mInFlightRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the backend, attaching it if needed.
+     */
+    abstract PermissionBackend backend();
+
+    /**
+     * Returns the backend if it's already attached, without attaching it.
+     */
+    abstract PermissionBackend peekBackend();
+
+    abstract boolean isGranted(String permission);
+
+    abstract boolean isRevoked(String permission);
+
+    abstract void log(String message);
+
+    /**
+     * Validates, deduplicates and interns the permissions once, so that the returned
+     * {@link PermissionRequest} can be requested any number of times without that cost.
+     * Prefer it to the {@code String...} methods for the permissions requested often.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static PermissionRequest compile(final String... permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("RxPermissions.compile requires at least one input permission");
+        }
+        int[] ids = new int[permissions.length];
+        String[] names = new String[permissions.length];
+        int size = 0;
+        long[] seen = new long[1];
+        for (String permission : permissions) {
+            if (permission == null || permission.isEmpty()) {
+                throw new IllegalArgumentException("RxPermissions.compile doesn't accept an empty permission");
+            }
+            int id = PermissionInterner.intern(permission);
+            int word = id >>> 6;
+            if (word >= seen.length) {
+                seen = Arrays.copyOf(seen, word + 1);
+            }
+            if ((seen[word] & (1L << id)) != 0) {
+                // Duplicate
+                continue;
+            }
+            seen[word] |= 1L << id;
+            ids[size] = id;
+            names[size] = permission;
+            size++;
+        }
+        if (size < permissions.length) {
+            ids = Arrays.copyOf(ids, size);
+            names = Arrays.copyOf(names, size);
+        }
+        return new PermissionRequest(names, ids, PermissionSet.ofIds(ids));
+    }
+
+    /**
+     * Map emitted items from the source observable into {@code true} if permissions in parameters
+     * are granted, or {@code false} if not.
+     * <p>
+     * If one or several permissions have never been requested, invoke the related framework method
+     * to ask the user if he allows the permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Boolean> ensure(final String... permissions) {
+        return ensure(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #ensure(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Boolean> ensure(final PermissionRequest permissions) {
+        return new ObservableTransformer<T, Boolean>() {
+            @Override
+            public ObservableSource<Boolean> apply(Observable<T> o) {
+                return request(o, permissions)
+                        // Transform Observable<Permission> to Observable<Boolean>
+                        .lift(new CombineOperator<Boolean>(permissions.size()) {
+                            @Override
+                            Boolean combine(boolean granted, boolean shouldShowRequestPermissionRationale) {
+                                // Return true if all permissions are granted.
+                                return granted;
+                            }
+                        });
+            }
+        };
+    }
+
+    /**
+     * Map emitted items from the source observable into {@link Permission} objects for each
+     * permission in parameters.
+     * <p>
+     * If one or several permissions have never been requested, invoke the related framework method
+     * to ask the user if he allows the permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Permission> ensureEach(final String... permissions) {
+        return ensureEach(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #ensureEach(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Permission> ensureEach(final PermissionRequest permissions) {
+        return new ObservableTransformer<T, Permission>() {
+            @Override
+            public ObservableSource<Permission> apply(Observable<T> o) {
+                return request(o, permissions);
+            }
+        };
+    }
+
+    /**
+     * Map emitted items from the source observable into one combined {@link Permission} object. Only if all permissions are granted,
+     * permission also will be granted. If any permission has {@code shouldShowRationale} checked, than result also has it checked.
+     * <p>
+     * If one or several permissions have never been requested, invoke the related framework method
+     * to ask the user if he allows the permissions.
+     */
+    public <T> ObservableTransformer<T, Permission> ensureEachCombined(final String... permissions) {
+        return ensureEachCombined(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #ensureEachCombined(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Permission> ensureEachCombined(final PermissionRequest permissions) {
+        return new ObservableTransformer<T, Permission>() {
+            @Override
+            public ObservableSource<Permission> apply(Observable<T> o) {
+                // Results are emitted in the order of the permissions, the combined name is
+                // always the same.
+                final String name = permissions.combinedName;
+                return request(o, permissions)
+                        .lift(new CombineOperator<Permission>(permissions.size()) {
+                            @Override
+                            Permission combine(boolean granted, boolean shouldShowRequestPermissionRationale) {
+                                return new Permission(name, granted, shouldShowRequestPermissionRationale);
+                            }
+                        });
+            }
+        };
+    }
+
+    /**
+     * Flowable version of {@link #ensure(String...)}, for trigger sources emitting in bursts.
+     * <p>
+     * Only one request is made at a time, the triggers emitted meanwhile are handled according
+     * to the strategy : {@link BackpressureStrategy#DROP} ignores them,
+     * {@link BackpressureStrategy#LATEST} keeps only the latest one, and
+     * {@link BackpressureStrategy#BUFFER} keeps up to {@link #setTriggerBufferSize(int)} of them.
+     * <p>
+     * Unlike {@link #ensure(String...)}, a result is not emitted again after a configuration change.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> FlowableTransformer<T, Boolean> ensureFlowable(final BackpressureStrategy strategy, final String... permissions) {
+        final PermissionRequest request = compile(permissions);
+        return new FlowableTransformer<T, Boolean>() {
+            @Override
+            public Publisher<Boolean> apply(Flowable<T> triggers) {
+                return onBackpressure(triggers, strategy)
+                        .flatMap(new Function<T, Publisher<Boolean>>() {
+                            @Override
+                            public Publisher<Boolean> apply(T t) {
+                                return requestSingle(request).toFlowable();
+                            }
+                        }, false, 1);
+            }
+        };
+    }
+
+    /**
+     * Flowable version of {@link #ensureEach(String...)}, for trigger sources emitting in bursts.
+     *
+     * @see #ensureFlowable(BackpressureStrategy, String...)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> FlowableTransformer<T, Permission> ensureEachFlowable(final BackpressureStrategy strategy, final String... permissions) {
+        final PermissionRequest request = compile(permissions);
+        return new FlowableTransformer<T, Permission>() {
+            @Override
+            public Publisher<Permission> apply(Flowable<T> triggers) {
+                return onBackpressure(triggers, strategy)
+                        .flatMap(new Function<T, Publisher<Permission>>() {
+                            @Override
+                            public Publisher<Permission> apply(T t) {
+                                // At most one Permission per requested permission
+                                return requestEach(request).toFlowable(BackpressureStrategy.BUFFER);
+                            }
+                        }, false, 1);
+            }
+        };
+    }
+
+    /**
+     * Flowable version of {@link #ensureEachCombined(String...)}, for trigger sources emitting
+     * in bursts.
+     *
+     * @see #ensureFlowable(BackpressureStrategy, String...)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> FlowableTransformer<T, Permission> ensureEachCombinedFlowable(final BackpressureStrategy strategy, final String... permissions) {
+        final PermissionRequest request = compile(permissions);
+        return new FlowableTransformer<T, Permission>() {
+            @Override
+            public Publisher<Permission> apply(Flowable<T> triggers) {
+                return onBackpressure(triggers, strategy)
+                        .flatMap(new Function<T, Publisher<Permission>>() {
+                            @Override
+                            public Publisher<Permission> apply(T t) {
+                                return requestCombinedSingle(request).toFlowable();
+                            }
+                        }, false, 1);
+            }
+        };
+    }
+
+    /**
+     * When enabled, a trigger emitted while a request of the same permissions is in flight joins
+     * that request and receives its results, instead of checking and requesting the permissions
+     * again.
+     * <p>
+     * Disabled by default.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setTriggerDeduplication(boolean enabled) {
+        mTriggerDeduplication = enabled;
+    }
+
+    /**
+     * Maximum number of triggers kept while a request is in flight, when the
+     * {@link BackpressureStrategy#BUFFER} strategy is used. Further triggers are dropped.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setTriggerBufferSize(int triggerBufferSize) {
+        if (triggerBufferSize <= 0) {
+            throw new IllegalArgumentException("RxPermissions.setTriggerBufferSize requires a positive size");
+        }
+        mTriggerBufferSize = triggerBufferSize;
+    }
+
+    private <T> Flowable<T> onBackpressure(Flowable<T> triggers, BackpressureStrategy strategy) {
+        switch (strategy) {
+            case DROP:
+                return triggers.onBackpressureDrop();
+            case LATEST:
+                return triggers.onBackpressureLatest();
+            case BUFFER:
+                return triggers.onBackpressureBuffer(mTriggerBufferSize, null, BackpressureOverflowStrategy.DROP_LATEST);
+            default:
+                throw new IllegalArgumentException("RxPermissions doesn't support the " + strategy + " strategy for triggers");
+        }
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Observable<Boolean> request(final String... permissions) {
+        return request(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #request(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Observable<Boolean> request(final PermissionRequest permissions) {
+        return Observable.just(TRIGGER).compose(ensure(permissions));
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Observable<Permission> requestEach(final String... permissions) {
+        return requestEach(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #requestEach(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Observable<Permission> requestEach(final PermissionRequest permissions) {
+        return Observable.just(TRIGGER).compose(ensureEach(permissions));
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    public Observable<Permission> requestEachCombined(final String... permissions) {
+        return requestEachCombined(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #requestEachCombined(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Observable<Permission> requestEachCombined(final PermissionRequest permissions) {
+        return Observable.just(TRIGGER).compose(ensureEachCombined(permissions));
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     * <p>
+     * Emits {@code true} if all the permissions are granted. Unlike {@link #request(String...)},
+     * the result is not emitted again after a configuration change.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Single<Boolean> requestSingle(final String... permissions) {
+        return requestSingle(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #requestSingle(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Single<Boolean> requestSingle(final PermissionRequest permissions) {
+        return new PermissionResultsSingle<Boolean>(resolver(permissions), permissions.ids, verifier(permissions)) {
+            @Override
+            Boolean combine(boolean granted, boolean shouldShowRequestPermissionRationale) {
+                return granted;
+            }
+        };
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     * <p>
+     * Emits one combined {@link Permission}, see {@link #requestEachCombined(String...)}. Unlike
+     * it, the result is not emitted again after a configuration change.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Single<Permission> requestCombinedSingle(final String... permissions) {
+        return requestCombinedSingle(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #requestCombinedSingle(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Single<Permission> requestCombinedSingle(final PermissionRequest permissions) {
+        final String name = permissions.combinedName;
+        return new PermissionResultsSingle<Permission>(resolver(permissions), permissions.ids, verifier(permissions)) {
+            @Override
+            Permission combine(boolean granted, boolean shouldShowRequestPermissionRationale) {
+                return new Permission(name, granted, shouldShowRequestPermissionRationale);
+            }
+        };
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     * <p>
+     * Completes if all the permissions are granted, fails with a
+     * {@link PermissionDeniedException} otherwise.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Completable requireAll(final String... permissions) {
+        return requireAll(compile(permissions));
+    }
+
+    /**
+     * Same as {@link #requireAll(String...)} with compiled permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Completable requireAll(final PermissionRequest permissions) {
+        return requestCombinedSingle(permissions)
+                .flatMapCompletable(new Function<Permission, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(Permission permission) {
+                        if (permission.granted) {
+                            return Completable.complete();
+                        }
+                        return Completable.error(new PermissionDeniedException(permission));
+                    }
+                });
+    }
+
+    private Callable<Object[]> resolver(final PermissionRequest permissions) {
+        return new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return resolve(permissions);
+            }
+        };
+    }
+
+    /**
+     * Returns the verifier of the granted permissions, null if none of them has to be verified.
+     */
+    PermissionResults.Verifier verifier(PermissionRequest permissions) {
+        return null;
+    }
+
+    private Observable<Permission> request(final Observable<?> trigger, final PermissionRequest permissions) {
+        return oneOf(trigger, pending(permissions.permissionSet))
+                .flatMap(new Function<Object, Observable<Permission>>() {
+                    @Override
+                    public Observable<Permission> apply(Object o) {
+                        if (mTriggerDeduplication) {
+                            return requestDeduplicated(permissions);
+                        }
+                        return requestImplementation(permissions);
+                    }
+                });
+    }
+
+    /**
+     * Returns the in-flight request of the same permissions if any, so that its results are
+     * shared instead of checking and requesting the permissions again.
+     */
+    private Observable<Permission> requestDeduplicated(final PermissionRequest permissions) {
+        final PermissionRequest key = permissions;
+        Observable<Permission> inFlight = mInFlightRequests.get(key);
+        if (inFlight != null) {
+            log("Joining in-flight request " + key);
+            return inFlight;
+        }
+        // Deferred so that only the request registered below resolves the permissions
+        Observable<Permission> request = Observable
+                .defer(new Callable<ObservableSource<Permission>>() {
+                    @Override
+                    public ObservableSource<Permission> call() {
+                        return requestImplementation(permissions);
+                    }
+                })
+                .doFinally(new Action() {
+                    @Override
+                    public void run() {
+                        mInFlightRequests.remove(key);
+                    }
+                })
+                .replay()
+                .refCount();
+        inFlight = mInFlightRequests.putIfAbsent(key, request);
+        if (inFlight != null) {
+            log("Joining in-flight request " + key);
+            return inFlight;
+        }
+        return request;
+    }
+
+    private Observable<?> pending(final PermissionSet permissions) {
+        // Nothing can be pending without the backend
+        final PermissionBackend backend = peekBackend();
+        if (backend == null || !backend.containsAll(permissions)) {
+            return Observable.empty();
+        }
+        return Observable.just(TRIGGER);
+    }
+
+    private Observable<?> oneOf(Observable<?> trigger, Observable<?> pending) {
+        if (trigger == null) {
+            return Observable.just(TRIGGER);
+        }
+        return Observable.merge(trigger, pending);
+    }
+
+    Observable<Permission> requestImplementation(final PermissionRequest permissions) {
+        return new PermissionResults(resolve(permissions), permissions.ids, verifier(permissions));
+    }
+
+    /**
+     * Returns the result of each permission, either a known {@link Permission} or the
+     * {@link PermissionResult} of a pending request, and requests the permissions which are not
+     * pending yet. The pending results are acquired, {@link PermissionResults} and
+     * {@link PermissionResultsSingle} release them.
+     */
+    Object[] resolve(final PermissionRequest request) {
+        final String[] permissions = request.permissions;
+        final int[] ids = request.ids;
+        // Only attached once a permission has to be requested
+        PermissionBackend backend = null;
+        Object[] results = new Object[permissions.length];
+        List<String> unrequestedPermissions = null;
+
+        for (int i = 0; i < permissions.length; i++) {
+            String permission = permissions[i];
+            log("Requesting permission " + permission);
+            if (isGranted(permission)) {
+                // Already granted, or not Android M
+                // Return a granted Permission object.
+                results[i] = new Permission(permission, true, false);
+                continue;
+            }
+
+            if (isRevoked(permission)) {
+                // Revoked by a policy, return a denied Permission object.
+                results[i] = new Permission(permission, false, false);
+                continue;
+            }
+
+            if (backend == null) {
+                backend = backend();
+            }
+            // Held until the request terminates or is disposed, see PermissionResults
+            PermissionResult subject = backend.acquireSubject(ids[i]);
+            // Create a new subject if not exists
+            if (subject == null) {
+                if (unrequestedPermissions == null) {
+                    unrequestedPermissions = new ArrayList<>(permissions.length);
+                }
+                unrequestedPermissions.add(permission);
+                subject = backend.newSubject(ids[i]);
+            }
+
+            results[i] = subject;
+        }
+
+        if (unrequestedPermissions != null) {
+            String[] unrequestedPermissionsArray = unrequestedPermissions.toArray(new String[unrequestedPermissions.size()]);
+            requestPermissionsFromFragment(unrequestedPermissionsArray);
+        }
+        return results;
+    }
+
+    void requestPermissionsFromFragment(String[] permissions) {
+        final PermissionBackend backend = backend();
+        backend.log("requestPermissionsFromFragment " + Arrays.toString(permissions));
+        backend.requestPermissions(permissions);
+    }
+
+    void onRequestPermissionsResult(String permissions[], int[] grantResults) {
+        backend().onRequestPermissionsResult(permissions, grantResults, new boolean[permissions.length]);
+    }
+}
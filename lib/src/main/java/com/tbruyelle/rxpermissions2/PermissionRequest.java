@@ -0,0 +1,69 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of permissions to request, see {@link RxPermissions#compile(String...)}.
+ * <p>
+ * The permissions are validated, deduplicated and interned once, so that the same instance can
+ * be requested any number of times without paying that cost again.
+ */
+public final class PermissionRequest {
+
+    // Deduplicated, in the order of first appearance
+    final String[] permissions;
+    final int[] ids;
+    final PermissionSet permissionSet;
+    // Name of the combined Permission, see RxPermissions.ensureEachCombined
+    final String combinedName;
+
+    PermissionRequest(String[] permissions, int[] ids, PermissionSet permissionSet) {
+        this.permissions = permissions;
+        this.ids = ids;
+        this.permissionSet = permissionSet;
+        StringBuilder name = new StringBuilder();
+        for (String permission : permissions) {
+            if (name.length() > 0) {
+                name.append(", ");
+            }
+            name.append(permission);
+        }
+        combinedName = name.toString();
+    }
+
+    /**
+     * Returns the number of distinct permissions.
+     */
+    public int size() {
+        return permissions.length;
+    }
+
+    @NonNull
+    public String[] getPermissions() {
+        return permissions.clone();
+    }
+
+    @NonNull
+    public PermissionSet getPermissionSet() {
+        return permissionSet;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(ids, ((PermissionRequest) o).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids);
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionRequest{" + combinedName + '}';
+    }
+}
@@ -0,0 +1,170 @@
+package com.tbruyelle.rxpermissions2;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Holds the result of a pending permission request.
+ * <p>
+ * The result can be assigned only once, it's then emitted to the current observers and replayed
+ * to the ones subscribing later, for instance after a configuration change.
+ * <p>
+ * Each request holding the result acquires it when resolved and releases it once terminated or
+ * disposed, whether it subscribed to it or not: a request may resolve several results and only
+ * subscribe to the next one once the previous has been emitted.
+ */
+final class PermissionResult extends Observable<Permission> {
+
+    interface Callback {
+        /**
+         * Invoked when the last holder has released the result before it was assigned.
+         */
+        void onReleased(PermissionResult result);
+    }
+
+    private static final ResultDisposable[] EMPTY = new ResultDisposable[0];
+    private static final ResultDisposable[] TERMINATED = new ResultDisposable[0];
+
+    private static final AtomicReferenceFieldUpdater<PermissionResult, ResultDisposable[]> OBSERVERS =
+            AtomicReferenceFieldUpdater.newUpdater(PermissionResult.class, ResultDisposable[].class, "mObservers");
+    private static final AtomicReferenceFieldUpdater<PermissionResult, Permission> VALUE =
+            AtomicReferenceFieldUpdater.newUpdater(PermissionResult.class, Permission.class, "mValue");
+    private static final AtomicIntegerFieldUpdater<PermissionResult> HOLDERS =
+            AtomicIntegerFieldUpdater.newUpdater(PermissionResult.class, "mHolders");
+
+    final int id;
+    final String permission;
+    private final Callback mCallback;
+    private volatile ResultDisposable[] mObservers = EMPTY;
+    private volatile Permission mValue;
+    private volatile int mHolders;
+
+    PermissionResult(int id, Callback callback) {
+        this.id = id;
+        this.permission = PermissionInterner.name(id);
+        mCallback = callback;
+    }
+
+    @Override
+    protected void subscribeActual(Observer<? super Permission> observer) {
+        ResultDisposable d = new ResultDisposable(observer, this);
+        observer.onSubscribe(d);
+        if (add(d)) {
+            if (d.disposed) {
+                remove(d);
+            }
+        } else if (!d.disposed) {
+            // The value is set before the observers are terminated
+            observer.onNext(mValue);
+            observer.onComplete();
+        }
+    }
+
+    /**
+     * Assigns the result, only the first call has an effect.
+     */
+    void onResult(Permission value) {
+        if (!VALUE.compareAndSet(this, null, value)) {
+            return;
+        }
+        for (ResultDisposable d : OBSERVERS.getAndSet(this, TERMINATED)) {
+            if (!d.disposed) {
+                d.actual.onNext(value);
+                d.actual.onComplete();
+            }
+        }
+    }
+
+    boolean hasResult() {
+        return mValue != null;
+    }
+
+    void acquire() {
+        HOLDERS.incrementAndGet(this);
+    }
+
+    void release() {
+        if (HOLDERS.decrementAndGet(this) == 0 && mValue == null && mCallback != null) {
+            mCallback.onReleased(this);
+        }
+    }
+
+    boolean isHeld() {
+        return mHolders > 0;
+    }
+
+    private boolean add(ResultDisposable d) {
+        for (;;) {
+            ResultDisposable[] current = mObservers;
+            if (current == TERMINATED) {
+                return false;
+            }
+            int n = current.length;
+            ResultDisposable[] next = new ResultDisposable[n + 1];
+            System.arraycopy(current, 0, next, 0, n);
+            next[n] = d;
+            if (OBSERVERS.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private void remove(ResultDisposable d) {
+        for (;;) {
+            ResultDisposable[] current = mObservers;
+            int n = current.length;
+            if (current == TERMINATED || n == 0) {
+                return;
+            }
+            int index = -1;
+            for (int i = 0; i < n; i++) {
+                if (current[i] == d) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            ResultDisposable[] next;
+            if (n == 1) {
+                next = EMPTY;
+            } else {
+                next = new ResultDisposable[n - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, n - index - 1);
+            }
+            if (OBSERVERS.compareAndSet(this, current, next)) {
+                return;
+            }
+        }
+    }
+
+    private static final class ResultDisposable implements Disposable {
+        final Observer<? super Permission> actual;
+        final PermissionResult parent;
+        volatile boolean disposed;
+
+        ResultDisposable(Observer<? super Permission> actual, PermissionResult parent) {
+            this.actual = actual;
+            this.parent = parent;
+        }
+
+        @Override
+        public void dispose() {
+            if (!disposed) {
+                disposed = true;
+                parent.remove(this);
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.tbruyelle.rxpermissions2;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+
+/**
+ * Emits in order the results of a permissions request, then completes.
+ * <p>
+ * Each result is either an already known {@link Permission}, emitted right away, or the
+ * {@link PermissionResult} of a pending request, subscribed once the previous results have been
+ * emitted. Granted permissions go through the optional {@link Verifier} before being emitted.
+ * <p>
+ * The pending results are released once terminated or disposed, including the ones not
+ * subscribed yet.
+ */
+final class PermissionResults extends Observable<Permission> {
+
+    interface Verifier {
+        /**
+         * Returns the permission to emit in place of the given granted permission, whose id is
+         * given by {@link PermissionInterner}.
+         */
+        Permission verify(int id, Permission permission) throws Exception;
+    }
+
+    private final Object[] mResults;
+    // The id of each result, in the same order
+    private final int[] mIds;
+    private final Verifier mVerifier;
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+
+    PermissionResults(Object[] results, int[] ids, Verifier verifier) {
+        mResults = results;
+        mIds = ids;
+        mVerifier = verifier;
+    }
+
+    @Override
+    protected void subscribeActual(Observer<? super Permission> observer) {
+        ResultsObserver parent = new ResultsObserver(observer, this);
+        observer.onSubscribe(parent);
+        parent.drain();
+    }
+
+    /**
+     * Releases the pending results acquired when resolved, only the first call has an effect.
+     */
+    void release() {
+        if (mReleased.compareAndSet(false, true)) {
+            for (Object result : mResults) {
+                if (result instanceof PermissionResult) {
+                    ((PermissionResult) result).release();
+                }
+            }
+        }
+    }
+
+    private static final class ResultsObserver extends AtomicInteger implements Observer<Permission>, Disposable {
+        private static final long serialVersionUID = -6513367104931521543L;
+
+        private final Observer<? super Permission> actual;
+        private final PermissionResults parent;
+        private final Object[] results;
+        private final int[] ids;
+        private final Verifier verifier;
+        // Index of the next result, the one emitted being the previous
+        private int index;
+        // True while waiting for a pending result
+        private volatile boolean active;
+        private volatile boolean disposed;
+        private volatile Disposable current;
+
+        ResultsObserver(Observer<? super Permission> actual, PermissionResults parent) {
+            this.actual = actual;
+            this.parent = parent;
+            this.results = parent.mResults;
+            this.ids = parent.mIds;
+            this.verifier = parent.mVerifier;
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+            for (;;) {
+                if (disposed) {
+                    return;
+                }
+                if (!active) {
+                    if (index == results.length) {
+                        disposed = true;
+                        parent.release();
+                        actual.onComplete();
+                        return;
+                    }
+                    Object result = results[index++];
+                    if (result instanceof Permission) {
+                        emit((Permission) result);
+                        continue;
+                    }
+                    active = true;
+                    ((PermissionResult) result).subscribe(this);
+                }
+                if (decrementAndGet() == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void emit(Permission permission) {
+            if (verifier != null && permission.granted) {
+                try {
+                    permission = verifier.verify(ids[index - 1], permission);
+                } catch (Throwable t) {
+                    Exceptions.throwIfFatal(t);
+                    dispose();
+                    actual.onError(t);
+                    return;
+                }
+            }
+            actual.onNext(permission);
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            current = d;
+            if (disposed) {
+                d.dispose();
+            }
+        }
+
+        @Override
+        public void onNext(Permission permission) {
+            if (!disposed) {
+                emit(permission);
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (!disposed) {
+                disposed = true;
+                parent.release();
+                actual.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            active = false;
+            drain();
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            Disposable d = current;
+            if (d != null) {
+                d.dispose();
+            }
+            parent.release();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.tbruyelle.rxpermissions2;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observer;
+import io.reactivex.Single;
+import io.reactivex.SingleObserver;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.exceptions.Exceptions;
+
+/**
+ * Emits a single value combining all the results of a permissions request.
+ * <p>
+ * The results are resolved on subscription, the pending ones being waited for all at once.
+ * Granted permissions go through the optional {@link PermissionResults.Verifier} before being
+ * combined. The pending results are released once terminated or disposed.
+ */
+abstract class PermissionResultsSingle<R> extends Single<R> {
+
+    private final Callable<Object[]> mResolver;
+    private final int[] mIds;
+    private final PermissionResults.Verifier mVerifier;
+
+    /**
+     * @param resolver returns the results of the request, either known {@link Permission}
+     *                 objects or the {@link PermissionResult} of pending requests
+     * @param ids      the id of each result, in the same order
+     */
+    PermissionResultsSingle(Callable<Object[]> resolver, int[] ids, PermissionResults.Verifier verifier) {
+        mResolver = resolver;
+        mIds = ids;
+        mVerifier = verifier;
+    }
+
+    /**
+     * Returns the value emitted once all the results are known.
+     *
+     * @param granted                              true if all the permissions are granted
+     * @param shouldShowRequestPermissionRationale true if any permission should show a rationale
+     */
+    abstract R combine(boolean granted, boolean shouldShowRequestPermissionRationale);
+
+    @Override
+    protected void subscribeActual(SingleObserver<? super R> observer) {
+        Object[] results;
+        try {
+            results = mResolver.call();
+        } catch (Throwable t) {
+            Exceptions.throwIfFatal(t);
+            observer.onSubscribe(Disposables.disposed());
+            observer.onError(t);
+            return;
+        }
+        CombineObserver<R> parent = new CombineObserver<>(observer, this, results);
+        observer.onSubscribe(parent);
+        for (int i = 0; i < results.length; i++) {
+            if (parent.isDisposed()) {
+                return;
+            }
+            Object result = results[i];
+            if (result instanceof Permission) {
+                parent.onResult(mIds[i], (Permission) result);
+            } else if (mVerifier == null) {
+                ((PermissionResult) result).subscribe(parent);
+            } else {
+                ((PermissionResult) result).subscribe(new PendingObserver(parent, mIds[i]));
+            }
+        }
+    }
+
+    private static final class CombineObserver<R> extends AtomicInteger implements Observer<Permission>, Disposable {
+        private static final long serialVersionUID = 4280152875376204397L;
+
+        private final SingleObserver<? super R> actual;
+        private final PermissionResultsSingle<R> parent;
+        private final Object[] results;
+        private final CompositeDisposable pending = new CompositeDisposable();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private boolean granted = true;
+        private boolean shouldShowRequestPermissionRationale;
+
+        CombineObserver(SingleObserver<? super R> actual, PermissionResultsSingle<R> parent, Object[] results) {
+            super(results.length);
+            this.actual = actual;
+            this.parent = parent;
+            this.results = results;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            pending.add(d);
+        }
+
+        @Override
+        public void onNext(Permission permission) {
+            // Only subscribed to the pending results directly without verifier
+            combine(permission);
+        }
+
+        void onResult(int id, Permission permission) {
+            if (permission.granted && parent.mVerifier != null) {
+                try {
+                    permission = parent.mVerifier.verify(id, permission);
+                } catch (Throwable t) {
+                    Exceptions.throwIfFatal(t);
+                    onError(t);
+                    return;
+                }
+            }
+            combine(permission);
+        }
+
+        private void combine(Permission permission) {
+            synchronized (this) {
+                granted &= permission.granted;
+                shouldShowRequestPermissionRationale |= permission.shouldShowRequestPermissionRationale;
+            }
+            if (decrementAndGet() == 0) {
+                boolean g;
+                boolean r;
+                synchronized (this) {
+                    g = granted;
+                    r = shouldShowRequestPermissionRationale;
+                }
+                dispose();
+                actual.onSuccess(parent.combine(g, r));
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            // Prevents any further emission
+            if (getAndSet(-1) > 0) {
+                dispose();
+                actual.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            // Each pending result completes right after its value
+        }
+
+        @Override
+        public void dispose() {
+            pending.dispose();
+            if (released.compareAndSet(false, true)) {
+                for (Object result : results) {
+                    if (result instanceof PermissionResult) {
+                        ((PermissionResult) result).release();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return pending.isDisposed();
+        }
+    }
+
+    /**
+     * Passes the result of a pending request to the parent with the id of its permission, for
+     * the verifier.
+     */
+    private static final class PendingObserver implements Observer<Permission> {
+
+        private final CombineObserver<?> parent;
+        private final int id;
+
+        PendingObserver(CombineObserver<?> parent, int id) {
+            this.parent = parent;
+            this.id = id;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            parent.onSubscribe(d);
+        }
+
+        @Override
+        public void onNext(Permission permission) {
+            parent.onResult(id, permission);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            parent.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
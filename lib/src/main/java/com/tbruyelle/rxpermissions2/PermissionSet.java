@@ -0,0 +1,141 @@
+package com.tbruyelle.rxpermissions2;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of permissions, stored as a bitset of their process-wide ids.
+ * <p>
+ * Membership and inclusion are bit operations, without hashing nor comparing names.
+ */
+public final class PermissionSet {
+
+    private static final long[] EMPTY_WORDS = new long[0];
+
+    private final long[] mWords;
+    private final int mSize;
+
+    private PermissionSet(long[] words) {
+        mWords = words;
+        int size = 0;
+        for (long word : words) {
+            size += Long.bitCount(word);
+        }
+        mSize = size;
+    }
+
+    public static PermissionSet of(String... permissions) {
+        return ofIds(PermissionInterner.intern(permissions));
+    }
+
+    static PermissionSet ofIds(int[] ids) {
+        int max = -1;
+        for (int id : ids) {
+            max = Math.max(max, id);
+        }
+        long[] words = max < 0 ? EMPTY_WORDS : new long[(max >>> 6) + 1];
+        for (int id : ids) {
+            words[id >>> 6] |= 1L << id;
+        }
+        return new PermissionSet(words);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(String permission) {
+        int id = PermissionInterner.idOf(permission);
+        return id >= 0 && containsId(id);
+    }
+
+    boolean containsId(int id) {
+        int word = id >>> 6;
+        return word < mWords.length && (mWords[word] & (1L << id)) != 0;
+    }
+
+    public boolean containsAll(PermissionSet other) {
+        return other.isSubsetOf(mWords);
+    }
+
+    public boolean intersects(PermissionSet other) {
+        return intersects(other.mWords);
+    }
+
+    /**
+     * Returns true if any permission of this set is in the given bitset.
+     */
+    boolean intersects(long[] words) {
+        int n = Math.min(mWords.length, words.length);
+        for (int i = 0; i < n; i++) {
+            if ((mWords[i] & words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if all the permissions of this set are in the given bitset.
+     */
+    boolean isSubsetOf(long[] words) {
+        for (int i = 0; i < mWords.length; i++) {
+            long word = i < words.length ? words[i] : 0;
+            if ((mWords[i] & ~word) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the permission names, ordered by id.
+     */
+    public String[] toArray() {
+        String[] names = new String[mSize];
+        int n = 0;
+        for (int i = 0; i < mWords.length; i++) {
+            long word = mWords[i];
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                names[n++] = PermissionInterner.name((i << 6) + bit);
+                word &= word - 1;
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PermissionSet that = (PermissionSet) o;
+        int n = Math.max(mWords.length, that.mWords.length);
+        for (int i = 0; i < n; i++) {
+            long word = i < mWords.length ? mWords[i] : 0;
+            long thatWord = i < that.mWords.length ? that.mWords[i] : 0;
+            if (word != thatWord) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // Ignore the trailing empty words, like equals
+        int n = mWords.length;
+        while (n > 0 && mWords[n - 1] == 0) {
+            n--;
+        }
+        return Arrays.hashCode(Arrays.copyOf(mWords, n));
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionSet" + Arrays.toString(toArray());
+    }
+}
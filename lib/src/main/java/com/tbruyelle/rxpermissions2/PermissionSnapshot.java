@@ -0,0 +1,196 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable state of a set of permissions, resolved in one pass by
+ * {@link RxPermissions#snapshot(String...)}.
+ * <p>
+ * Each permission state is packed in a single byte, use {@link #diff(PermissionSnapshot)} to get
+ * only the permissions which changed between two snapshots.
+ */
+public final class PermissionSnapshot {
+
+    static final byte GRANTED = 1;
+    static final byte REVOKED = 1 << 1;
+    static final byte RATIONALE = 1 << 2;
+
+    private final String[] mNames;
+    private final byte[] mStates;
+
+    PermissionSnapshot(String[] names, byte[] states) {
+        mNames = names;
+        mStates = states;
+    }
+
+    /**
+     * Resolves the state of all the permissions from the host activity, without the fragment.
+     * The grant states are refreshed in the cache on the way.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static PermissionSnapshot take(@NonNull Activity activity, @NonNull String[] permissions,
+                                   @NonNull GrantStateCache grantStateCache) {
+        String[] names = permissions.clone();
+        byte[] states = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String permission = names[i];
+            boolean granted = RxPermissionsFragment.checkGranted(activity, permission);
+            if (granted) {
+                states[i] = GRANTED;
+            } else {
+                if (RxPermissionsFragment.checkRevoked(activity, permission)) {
+                    states[i] |= REVOKED;
+                }
+                if (activity.shouldShowRequestPermissionRationale(permission)) {
+                    states[i] |= RATIONALE;
+                }
+            }
+            grantStateCache.putGranted(permission, granted);
+        }
+        return new PermissionSnapshot(names, states);
+    }
+
+    static PermissionSnapshot allGranted(String[] permissions) {
+        byte[] states = new byte[permissions.length];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = GRANTED;
+        }
+        return new PermissionSnapshot(permissions.clone(), states);
+    }
+
+    public int size() {
+        return mNames.length;
+    }
+
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    public boolean contains(String permission) {
+        return indexOf(permission) >= 0;
+    }
+
+    /**
+     * Returns true if the permission was granted, false if it was not or if it isn't part of
+     * this snapshot.
+     */
+    public boolean isGranted(String permission) {
+        return hasFlag(permission, GRANTED);
+    }
+
+    /**
+     * Returns true if the permission was revoked by a policy.
+     */
+    public boolean isRevoked(String permission) {
+        return hasFlag(permission, REVOKED);
+    }
+
+    public boolean shouldShowRequestPermissionRationale(String permission) {
+        return hasFlag(permission, RATIONALE);
+    }
+
+    /**
+     * Returns the state of the permission at the given index as a {@link Permission}.
+     */
+    public Permission get(int index) {
+        return new Permission(mNames[index], (mStates[index] & GRANTED) != 0, (mStates[index] & RATIONALE) != 0);
+    }
+
+    /**
+     * Returns the permissions of this snapshot whose state differs from the one they had in
+     * {@code previous}, including the ones which weren't part of it.
+     */
+    public List<Permission> diff(PermissionSnapshot previous) {
+        List<Permission> changes = null;
+        // Fast path for snapshots of the same permissions, in the same order
+        boolean sameLayout = sameNames(previous);
+        for (int i = 0; i < mNames.length; i++) {
+            int previousIndex = sameLayout ? i : previous.indexOf(mNames[i]);
+            if (previousIndex >= 0 && previous.mStates[previousIndex] == mStates[i]) {
+                continue;
+            }
+            if (changes == null) {
+                changes = new ArrayList<>();
+            }
+            changes.add(get(i));
+        }
+        return changes == null ? Collections.<Permission>emptyList() : changes;
+    }
+
+    /**
+     * Returns the states of this snapshot updated with the ones of {@code other}, the
+     * permissions which are not part of it are appended.
+     */
+    PermissionSnapshot merge(PermissionSnapshot other) {
+        String[] names = Arrays.copyOf(mNames, mNames.length + other.mNames.length);
+        byte[] states = Arrays.copyOf(mStates, names.length);
+        int size = mNames.length;
+        for (int i = 0; i < other.mNames.length; i++) {
+            int index = indexOf(other.mNames[i]);
+            if (index >= 0) {
+                states[index] = other.mStates[i];
+            } else {
+                names[size] = other.mNames[i];
+                states[size++] = other.mStates[i];
+            }
+        }
+        if (size < names.length) {
+            names = Arrays.copyOf(names, size);
+            states = Arrays.copyOf(states, size);
+        }
+        return new PermissionSnapshot(names, states);
+    }
+
+    private boolean sameNames(PermissionSnapshot other) {
+        if (mNames == other.mNames) {
+            return true;
+        }
+        if (mNames.length != other.mNames.length) {
+            return false;
+        }
+        for (int i = 0; i < mNames.length; i++) {
+            if (!mNames[i].equals(other.mNames[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasFlag(String permission, byte flag) {
+        int index = indexOf(permission);
+        return index >= 0 && (mStates[index] & flag) != 0;
+    }
+
+    private int indexOf(String permission) {
+        for (int i = 0; i < mNames.length; i++) {
+            if (mNames[i].equals(permission)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PermissionSnapshot{");
+        for (int i = 0; i < mNames.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mNames[i])
+                    .append("=[granted=").append((mStates[i] & GRANTED) != 0)
+                    .append(", revoked=").append((mStates[i] & REVOKED) != 0)
+                    .append(", shouldShowRequestPermissionRationale=").append((mStates[i] & RATIONALE) != 0)
+                    .append(']');
+        }
+        return sb.append('}').toString();
+    }
+}
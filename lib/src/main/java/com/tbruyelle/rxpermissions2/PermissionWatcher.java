@@ -0,0 +1,106 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.reactivex.subjects.PublishSubject;
+
+/**
+ * Permissions watched by {@link RxPermissions#observeChanges(String...)}, with their number of
+ * watchers. Their state is checked once per resume of the host, only the changes are emitted.
+ * <p>
+ * Only used from the main thread.
+ */
+final class PermissionWatcher {
+
+    private final FragmentHandle mHandle;
+    private final Map<String, Integer> mWatchCounts = new LinkedHashMap<>();
+    private String[] mWatchedPermissions = new String[0];
+    private PermissionSnapshot mWatchedSnapshot;
+    private final PublishSubject<Permission> mChanges = PublishSubject.create();
+
+    PermissionWatcher(FragmentHandle handle) {
+        mHandle = handle;
+    }
+
+    PublishSubject<Permission> getChanges() {
+        return mChanges;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    void watch(@NonNull String[] permissions) {
+        List<String> added = null;
+        for (String permission : permissions) {
+            Integer count = mWatchCounts.get(permission);
+            mWatchCounts.put(permission, count == null ? 1 : count + 1);
+            if (count == null) {
+                if (added == null) {
+                    added = new ArrayList<>(permissions.length);
+                }
+                added.add(permission);
+            }
+        }
+        if (added == null) {
+            return;
+        }
+        mWatchedPermissions = mWatchCounts.keySet().toArray(new String[mWatchCounts.size()]);
+        final Activity activity = mHandle.hostActivity();
+        if (activity == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        // Baseline of the new permissions only, the others keep theirs so that a change made
+        // while the host was paused is still reported on the next resume
+        PermissionSnapshot snapshot = PermissionSnapshot.take(activity,
+                added.toArray(new String[added.size()]), mHandle.getGrantStateCache());
+        mWatchedSnapshot = mWatchedSnapshot == null ? snapshot : mWatchedSnapshot.merge(snapshot);
+    }
+
+    void unwatch(@NonNull String[] permissions) {
+        boolean removed = false;
+        for (String permission : permissions) {
+            Integer count = mWatchCounts.get(permission);
+            if (count == null) {
+                continue;
+            }
+            if (count == 1) {
+                mWatchCounts.remove(permission);
+                removed = true;
+            } else {
+                mWatchCounts.put(permission, count - 1);
+            }
+        }
+        if (removed) {
+            mWatchedPermissions = mWatchCounts.keySet().toArray(new String[mWatchCounts.size()]);
+        }
+    }
+
+    /**
+     * Checks all the watched permissions at once, whatever the number of watchers, and emits the
+     * ones which changed since the previous check.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    void check(@NonNull Activity activity) {
+        if (mWatchedPermissions.length == 0) {
+            return;
+        }
+        PermissionSnapshot previous = mWatchedSnapshot;
+        mWatchedSnapshot = PermissionSnapshot.take(activity, mWatchedPermissions, mHandle.getGrantStateCache());
+        if (previous == null) {
+            return;
+        }
+        for (Permission permission : mWatchedSnapshot.diff(previous)) {
+            // Skip the permissions watched since the previous check, they have no reference state
+            if (previous.contains(permission.name)) {
+                mHandle.log("Permission changed " + permission);
+                mChanges.onNext(permission);
+            }
+        }
+    }
+}
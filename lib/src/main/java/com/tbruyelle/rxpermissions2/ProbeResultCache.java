@@ -0,0 +1,71 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.os.SystemClock;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of the device-quirk probe results, keyed by permission.
+ * <p>
+ * Entries expire after the configured TTL, and are all dropped by {@link RxPermissionsFragment}
+ * when a permission result is received or when the host resumes, since the user may have
+ * toggled a permission in the system settings meanwhile.
+ */
+final class ProbeResultCache {
+
+    static final ProbeResultCache INSTANCE = new ProbeResultCache();
+
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    // A TTL <= 0 disables the cache.
+    private volatile long mTtlMillis;
+
+    private ProbeResultCache() {
+    }
+
+    void setTtl(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+        if (ttlMillis <= 0) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Returns the cached probe result, or null if there's none or if it has expired.
+     */
+    Boolean get(String permission) {
+        long ttl = mTtlMillis;
+        if (ttl <= 0) {
+            return null;
+        }
+        Entry entry = mEntries.get(permission);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.timestamp > ttl) {
+            mEntries.remove(permission);
+            return null;
+        }
+        return entry.result;
+    }
+
+    void put(String permission, boolean result) {
+        if (mTtlMillis > 0) {
+            mEntries.put(permission, new Entry(result, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    void invalidate() {
+        mEntries.clear();
+    }
+
+    private static final class Entry {
+        final boolean result;
+        final long timestamp;
+
+        Entry(boolean result, long timestamp) {
+            this.result = result;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.tbruyelle.rxpermissions2;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Environment;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.File;
+
+/**
+ * Hardware probes verifying that a permission reported granted is actually granted, see
+ * {@link DeviceQuirkRegistry}.
+ */
+final class RxPermissionUtil {
+
+    private RxPermissionUtil() {
+    }
+
+    static final int STORAGE_READABLE = 1;
+    static final int STORAGE_WRITABLE = 2;
+
+    // Accesses to the external storage found granted. Revoking a permission kills the process,
+    // so they stay valid until it restarts
+    private static volatile boolean sStorageReadable;
+    private static volatile boolean sStorageWritable;
+
+    /**
+     * Checks the access to the external storage from its metadata only, without any file I/O.
+     */
+    static boolean isStorageAccessible(boolean write) {
+        if (write ? sStorageWritable : sStorageReadable) {
+            return true;
+        }
+        return (getStorageAccess() & (write ? STORAGE_WRITABLE : STORAGE_READABLE)) != 0;
+    }
+
+    /**
+     * Returns both accesses to the external storage at once, see {@link #STORAGE_READABLE} and
+     * {@link #STORAGE_WRITABLE}, from its metadata only.
+     */
+    static int getStorageAccess() {
+        if (sStorageReadable && sStorageWritable) {
+            return STORAGE_READABLE | STORAGE_WRITABLE;
+        }
+        String state = Environment.getExternalStorageState();
+        File directory = Environment.getExternalStorageDirectory();
+        boolean writable = Environment.MEDIA_MOUNTED.equals(state) && directory.canWrite();
+        boolean readable = (Environment.MEDIA_MOUNTED.equals(state) || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
+                && directory.canRead();
+        if (writable) {
+            sStorageWritable = true;
+        }
+        if (readable) {
+            sStorageReadable = true;
+        }
+        return (sStorageReadable ? STORAGE_READABLE : 0) | (sStorageWritable ? STORAGE_WRITABLE : 0);
+    }
+
+    /**
+     * Forgets the storage accesses found granted.
+     */
+    @VisibleForTesting
+    static void resetStorageAccess() {
+        sStorageReadable = false;
+        sStorageWritable = false;
+    }
+
+    // 存储
+    static boolean isStorage() {
+        // Unique among the processes and their threads, unlike UUID.randomUUID() it doesn't need
+        // to seed a SecureRandom
+        String fileName = ".rxpermissions_" + Process.myPid() + "_" + Thread.currentThread().getId() + ".tmp";
+        File file = new File(Environment.getExternalStorageDirectory(), fileName);
+        try {
+            if (file.createNewFile()) {
+                file.delete();
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // 定位权限
+    static boolean isLocation(Context context) {
+        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        // 构建位置查询条件
+        Criteria criteria = new Criteria();
+        // 设置定位精确度 Criteria.ACCURACY_COARSE比较粗略，Criteria.ACCURACY_FINE则比较精细
+        //Criteria.ACCURACY_FINE,当使用该值时，在建筑物当中，可能定位不了,建议在对定位要求并不是很高的时候用Criteria.ACCURACY_COARSE，避免定位失败
+        // 查询精度：高
+        criteria.setAccuracy(Criteria.ACCURACY_FINE);
+        // 设置是否要求速度
+        criteria.setSpeedRequired(false);
+        // 是否查询海拨：否
+        criteria.setAltitudeRequired(false);
+        // 是否查询方位角 : 否
+        criteria.setBearingRequired(false);
+        // 是否允许付费：是
+        criteria.setCostAllowed(false);
+        // 电量要求：低
+        criteria.setPowerRequirement(Criteria.POWER_LOW);
+        // 返回最合适的符合条件的provider，第2个参数为true说明 , 如果只有一个provider是有效的,则返回当前provider
+        String bestProvider = locationManager.getBestProvider(criteria, true);
+        Location location = locationManager.getLastKnownLocation(bestProvider);
+        if (location == null) {
+            location = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+        }
+        if (location == null) {
+            return false;
+        }
+        return true;
+    }
+
+
+    // 摄像头权限
+    static boolean isCamera() {
+        try {
+            //通过尝试打开相机的方式判断有无拍照权限（在6.0以下使用拥有root权限的管理软件可以管理权限）
+            boolean isCanUse = true;
+            Camera mCamera = null;
+            try {
+                mCamera = Camera.open();
+                Camera.Parameters mParameters = mCamera.getParameters();
+                mCamera.setParameters(mParameters);
+            } catch (Exception e) {
+                isCanUse = false;
+            } finally {
+                if (mCamera != null) {
+                    try {
+                        mCamera.release();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        isCanUse = false;
+                    } finally {
+                        return isCanUse;
+                    }
+                } else {
+                    return false;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // 录音权限
+    static boolean isRecord() {
+        try {
+            // 音频获取源
+            int audioSource = MediaRecorder.AudioSource.MIC;
+            // 设置音频采样率，44100是目前的标准，但是某些设备仍然支持22050，16000，11025
+            int sampleRateInHz = 44100;
+            // 设置音频的录制的声道CHANNEL_IN_STEREO为双声道，CHANNEL_CONFIGURATION_MONO为单声道
+            int channelConfig = AudioFormat.CHANNEL_IN_STEREO;
+            // 音频数据格式:PCM 16位每个样本。保证设备支持。PCM 8位每个样本。不一定能得到设备支持。
+            int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+            // 缓冲区字节大小
+            int bufferSizeInBytes;
+            boolean flag;
+            bufferSizeInBytes = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
+            AudioRecord audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes);
+            //开始录制音频
+            try {
+                // 防止某些手机崩溃，例如联想
+                audioRecord.startRecording();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            } finally {
+                /**
+                 * 根据开始录音判断是否有录音权限
+                 */
+                if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING)
+                    flag = false;
+                else
+                    flag = true;
+                audioRecord.stop();
+                audioRecord.release();
+                return flag;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
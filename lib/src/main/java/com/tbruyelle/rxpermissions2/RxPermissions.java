@@ -14,285 +14,318 @@
 
 package com.tbruyelle.rxpermissions2;
 
-import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
-import android.hardware.Camera;
-import android.location.Criteria;
-import android.location.Location;
-import android.location.LocationManager;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Build;
-import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
-import android.support.v4.app.FragmentManager;
-import android.text.TextUtils;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Observable;
-import io.reactivex.ObservableEmitter;
-import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.ObservableSource;
-import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
-import io.reactivex.subjects.PublishSubject;
+import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
 
-public class RxPermissions {
+public class RxPermissions extends PermissionPipeline {
 
     static final String TAG = RxPermissions.class.getSimpleName();
-    static final Object TRIGGER = new Object();
+    static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 3000;
+    // Maximum number of probes of a request running at the same time on the probe scheduler
+    static final int MAX_CONCURRENT_PROBES = 4;
 
     @VisibleForTesting
-    Lazy<RxPermissionsFragment> mRxPermissionsFragment;
+    FragmentHandle mRxPermissionsFragment;
+
+    private Scheduler mProbeScheduler;
+    private long mProbeTimeoutMillis = DEFAULT_PROBE_TIMEOUT_MILLIS;
+
+    // Verifies the granted permissions on the thread delivering them.
+    private final PermissionResults.Verifier mVerifier = new PermissionResults.Verifier() {
+        @Override
+        public Permission verify(int id, Permission permission) {
+            DeviceQuirkRegistry.Probe probe = DeviceQuirkRegistry.probeFor(id);
+            if (probe == null || specialHandle(probe, permission.name, getContext())) {
+                return permission;
+            }
+            return new Permission(permission.name, false, permission.shouldShowRequestPermissionRationale);
+        }
+    };
 
     public RxPermissions(@NonNull final FragmentActivity activity) {
-        mRxPermissionsFragment = getLazySingleton(activity.getSupportFragmentManager());
+        mRxPermissionsFragment = FragmentHandle.of(activity.getSupportFragmentManager(), activity);
     }
 
     public RxPermissions(@NonNull final Fragment fragment) {
-        mRxPermissionsFragment = getLazySingleton(fragment.getChildFragmentManager());
+        mRxPermissionsFragment = FragmentHandle.of(fragment.getChildFragmentManager(), fragment);
     }
 
-    @NonNull
-    private Lazy<RxPermissionsFragment> getLazySingleton(@NonNull final FragmentManager fragmentManager) {
-        return new Lazy<RxPermissionsFragment>() {
-
-            private RxPermissionsFragment rxPermissionsFragment;
-
-            @Override
-            public synchronized RxPermissionsFragment get() {
-                if (rxPermissionsFragment == null) {
-                    rxPermissionsFragment = getRxPermissionsFragment(fragmentManager);
-                }
-                return rxPermissionsFragment;
-            }
-
-        };
+    public void setLogging(boolean logging) {
+        mRxPermissionsFragment.setLogging(logging);
     }
 
-    private RxPermissionsFragment getRxPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
-        RxPermissionsFragment rxPermissionsFragment = findRxPermissionsFragment(fragmentManager);
-        boolean isNewInstance = rxPermissionsFragment == null;
-        if (isNewInstance) {
-            rxPermissionsFragment = new RxPermissionsFragment();
-            fragmentManager
-                    .beginTransaction()
-                    .add(rxPermissionsFragment, TAG)
-                    .commitNow();
-        }
-        return rxPermissionsFragment;
+    /**
+     * Attaches the headless fragment with an asynchronous commit instead of a synchronous one,
+     * to keep the fragment transaction off the critical path when RxPermissions is first used,
+     * typically from {@code onCreate}. The permission requests made until the fragment is
+     * created are queued, none is lost.
+     * <p>
+     * Applies to all the {@link RxPermissions} instances of the host. Must be set before the
+     * first use, disabled by default. The other settings don't attach the fragment, they can be
+     * set before it.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setAsyncAttach(boolean enabled) {
+        mRxPermissionsFragment.setAsyncAttach(enabled);
     }
 
-    private RxPermissionsFragment findRxPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
-        return (RxPermissionsFragment) fragmentManager.findFragmentByTag(TAG);
+    /**
+     * Runs the device-quirk verification probes (camera, audio record, storage, location) on the
+     * given {@link Scheduler} instead of the thread emitting the trigger. When that thread has a
+     * {@link Looper} (typically the main thread), the verified result is delivered back on it.
+     * <p>
+     * Pass {@code null} to run the probes synchronously, which is the default.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setProbeScheduler(Scheduler probeScheduler) {
+        mProbeScheduler = probeScheduler;
     }
 
-    public void setLogging(boolean logging) {
-        mRxPermissionsFragment.get().setLogging(logging);
+    /**
+     * Maximum time a probe running on the probe {@link Scheduler} may take. Once elapsed, the
+     * result reported by the system is kept as is.
+     * <p>
+     * Only applies when a probe scheduler has been set with {@link #setProbeScheduler(Scheduler)}.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setProbeTimeout(long timeout, @NonNull TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("RxPermissions.setProbeTimeout requires a positive timeout");
+        }
+        mProbeTimeoutMillis = unit.toMillis(timeout);
     }
 
     /**
-     * Map emitted items from the source observable into {@code true} if permissions in parameters
-     * are granted, or {@code false} if not.
+     * Merges the permission requests made until the main looper is idle into a single system
+     * dialog, instead of one dialog per request. Useful when several components request
+     * permissions from the same host at the same time, the overlapping dialogs would otherwise
+     * be dropped by the system.
      * <p>
-     * If one or several permissions have never been requested, invoke the related framework method
-     * to ask the user if he allows the permissions.
+     * Applies to all the {@link RxPermissions} instances of the host, disabled by default.
      */
     @SuppressWarnings("WeakerAccess")
-    public <T> ObservableTransformer<T, Boolean> ensure(final String... permissions) {
-        return new ObservableTransformer<T, Boolean>() {
-            @Override
-            public ObservableSource<Boolean> apply(Observable<T> o) {
-                return request(o, permissions)
-                        // Transform Observable<Permission> to Observable<Boolean>
-                        .buffer(permissions.length)
-                        .flatMap(new Function<List<Permission>, ObservableSource<Boolean>>() {
-                            @Override
-                            public ObservableSource<Boolean> apply(List<Permission> permissions) {
-                                if (permissions.isEmpty()) {
-                                    // Occurs during orientation change, when the subject receives onComplete.
-                                    // In that case we don't want to propagate that empty list to the
-                                    // subscriber, only the onComplete.
-                                    return Observable.empty();
-                                }
-                                // Return true if all permissions are granted.
-                                for (Permission p : permissions) {
-                                    if (!p.granted) {
-                                        return Observable.just(false);
-                                    }
-                                }
-                                return Observable.just(true);
-                            }
-                        });
-            }
-        };
+    public void setRequestCoalescing(boolean enabled) {
+        mRxPermissionsFragment.setRequestCoalescing(enabled);
     }
 
     /**
-     * Map emitted items from the source observable into {@link Permission} objects for each
-     * permission in parameters.
+     * Denies the permissions of a request which hasn't been answered by the system after the
+     * given delay, for instance because the dialog was dismissed by another app. Must be long
+     * enough to let the user answer.
      * <p>
-     * If one or several permissions have never been requested, invoke the related framework method
-     * to ask the user if he allows the permissions.
+     * A delay of 0 waits forever, which is the default.
      */
     @SuppressWarnings("WeakerAccess")
-    public <T> ObservableTransformer<T, Permission> ensureEach(final String... permissions) {
-        return new ObservableTransformer<T, Permission>() {
-            @Override
-            public ObservableSource<Permission> apply(Observable<T> o) {
-                return request(o, permissions);
-            }
-        };
+    public void setPendingRequestTimeout(long timeout, @NonNull TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("RxPermissions.setPendingRequestTimeout requires a positive or zero delay");
+        }
+        mRxPermissionsFragment.setPendingRequestTimeout(unit.toMillis(timeout));
     }
 
     /**
-     * Map emitted items from the source observable into one combined {@link Permission} object. Only if all permissions are granted,
-     * permission also will be granted. If any permission has {@code shouldShowRationale} checked, than result also has it checked.
+     * Keeps the grant states of the permissions in memory, so that checking again a permission
+     * doesn't go through the system. The states are updated when a permission result is
+     * received, and revalidated all together when the host resumes.
      * <p>
-     * If one or several permissions have never been requested, invoke the related framework method
-     * to ask the user if he allows the permissions.
+     * Disabled by default.
      */
-    public <T> ObservableTransformer<T, Permission> ensureEachCombined(final String... permissions) {
-        return new ObservableTransformer<T, Permission>() {
-            @Override
-            public ObservableSource<Permission> apply(Observable<T> o) {
-                return request(o, permissions)
-                        .buffer(permissions.length)
-                        .flatMap(new Function<List<Permission>, ObservableSource<Permission>>() {
-                            @Override
-                            public ObservableSource<Permission> apply(List<Permission> permissions) {
-                                if (permissions.isEmpty()) {
-                                    return Observable.empty();
-                                }
-                                return Observable.just(new Permission(permissions));
-                            }
-                        });
-            }
-        };
+    @SuppressWarnings("WeakerAccess")
+    public void setGrantStateCache(boolean enabled) {
+        mRxPermissionsFragment.getGrantStateCache().setEnabled(enabled);
     }
 
     /**
-     * Request permissions immediately, <b>must be invoked during initialization phase
-     * of your application</b>.
+     * Number of grant and revoke checks answered by the grant state cache.
      */
-    @SuppressWarnings({"WeakerAccess", "unused"})
-    public Observable<Boolean> request(final String... permissions) {
-        return Observable.just(TRIGGER).compose(ensure(permissions));
+    @SuppressWarnings("WeakerAccess")
+    public int getGrantStateCacheHits() {
+        return mRxPermissionsFragment.getGrantStateCache().getHits();
     }
 
     /**
-     * Request permissions immediately, <b>must be invoked during initialization phase
-     * of your application</b>.
+     * Number of grant and revoke checks which had to go through the system while the grant
+     * state cache was enabled.
      */
-    @SuppressWarnings({"WeakerAccess", "unused"})
-    public Observable<Permission> requestEach(final String... permissions) {
-        return Observable.just(TRIGGER).compose(ensureEach(permissions));
+    @SuppressWarnings("WeakerAccess")
+    public int getGrantStateCacheMisses() {
+        return mRxPermissionsFragment.getGrantStateCache().getMisses();
     }
 
     /**
-     * Request permissions immediately, <b>must be invoked during initialization phase
-     * of your application</b>.
+     * Keeps the device-quirk probe results for the given duration, so that verifying again a
+     * permission doesn't re-run the hardware probe. The cache is shared by the whole process and
+     * is cleared each time a permission result is received or the host resumes.
+     * <p>
+     * A duration of 0 disables the cache, which is the default.
      */
-    public Observable<Permission> requestEachCombined(final String... permissions) {
-        return Observable.just(TRIGGER).compose(ensureEachCombined(permissions));
+    @SuppressWarnings("WeakerAccess")
+    public static void setProbeCacheTtl(long ttl, @NonNull TimeUnit unit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("RxPermissions.setProbeCacheTtl requires a positive or zero duration");
+        }
+        ProbeResultCache.INSTANCE.setTtl(unit.toMillis(ttl));
     }
 
-    private Observable<Permission> request(final Observable<?> trigger, final String... permissions) {
-        if (permissions == null || permissions.length == 0) {
-            throw new IllegalArgumentException("RxPermissions.request/requestEach requires at least one input permission");
+    @Override
+    public Single<Boolean> requestSingle(final PermissionRequest permissions) {
+        if (mProbeScheduler != null && isProbed(permissions)) {
+            // The probes need the Observable chain to run on their scheduler
+            return request(permissions).singleOrError();
         }
-        return oneOf(trigger, pending(permissions))
-                .flatMap(new Function<Object, Observable<Permission>>() {
-                    @Override
-                    public Observable<Permission> apply(Object o) {
-                        return requestImplementation(permissions);
-                    }
-                })
-                .flatMap(new Function<Permission, ObservableSource<Permission>>() {
-                    @Override
-                    public ObservableSource<Permission> apply(Permission permission) throws Exception {
-                        Permission newP = null;
-                        if (permission.granted) {
-                            newP = new Permission(permission.name, specialHandle(permission.name, mRxPermissionsFragment.get().getContext()), permission.shouldShowRequestPermissionRationale);
-                        } else {
-                            newP = permission;
-                        }
-                        final Permission finalNewP = newP;
-                        return Observable.create(new ObservableOnSubscribe<Permission>() {
-                            @Override
-                            public void subscribe(ObservableEmitter<Permission> emitter) throws Exception {
-                                emitter.onNext(finalNewP);
-                                emitter.onComplete();
-                            }
-                        });
-                    }
-                });
+        return super.requestSingle(permissions);
     }
 
-    private Observable<?> pending(final String... permissions) {
-        for (String p : permissions) {
-            if (!mRxPermissionsFragment.get().containsByPermission(p)) {
-                return Observable.empty();
-            }
+    @Override
+    public Single<Permission> requestCombinedSingle(final PermissionRequest permissions) {
+        if (mProbeScheduler != null && isProbed(permissions)) {
+            // The probes need the Observable chain to run on their scheduler
+            return requestEachCombined(permissions).singleOrError();
         }
-        return Observable.just(TRIGGER);
+        return super.requestCombinedSingle(permissions);
     }
 
-    private Observable<?> oneOf(Observable<?> trigger, Observable<?> pending) {
-        if (trigger == null) {
-            return Observable.just(TRIGGER);
+    @Override
+    PermissionResults.Verifier verifier(PermissionRequest permissions) {
+        return isProbed(permissions) ? mVerifier : null;
+    }
+
+    @Override
+    Observable<Permission> requestImplementation(final PermissionRequest permissions) {
+        if (mProbeScheduler == null || !isProbed(permissions)) {
+            return super.requestImplementation(permissions);
         }
-        return Observable.merge(trigger, pending);
+        Object[] results = resolve(permissions);
+        // The distinct probes run in parallel, their results are emitted in order
+        return new PermissionResults(results, permissions.ids, null)
+                .concatMapEager(probeVerifier(permissions, results), MAX_CONCURRENT_PROBES, 1);
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    private Observable<Permission> requestImplementation(final String... permissions) {
-        List<Observable<Permission>> list = new ArrayList<>(permissions.length);
-        List<String> unrequestedPermissions = new ArrayList<>();
-
-        // In case of multiple permissions, we create an Observable for each of them.
-        // At the end, the observables are combined to have a unique response.
-        for (String permission : permissions) {
-            mRxPermissionsFragment.get().log("Requesting permission " + permission);
-            if (isGranted(permission)) {
-                // Already granted, or not Android M
-                // Return a granted Permission object.
-                list.add(Observable.just(new Permission(permission, true, false)));
-                continue;
-            }
+    /**
+     * Returns true if any of the permissions has a device-quirk probe on this device.
+     */
+    private static boolean isProbed(PermissionRequest permissions) {
+        return DeviceQuirkRegistry.hasProbe(permissions.permissionSet);
+    }
 
-            if (isRevoked(permission)) {
-                // Revoked by a policy, return a denied Permission object.
-                list.add(Observable.just(new Permission(permission, false, false)));
-                continue;
-            }
+    /**
+     * Returns the function verifying the granted permissions of a request on the probe scheduler.
+     * The probes verifying several permissions of the request only run once, see
+     * {@link DeviceQuirkRegistry.SharedProbe} and {@link DeviceQuirkRegistry.BatchProbe}.
+     */
+    private Function<Permission, ObservableSource<Permission>> probeVerifier(final PermissionRequest request,
+                                                                           final Object[] results) {
+        // Probe runs of the request, by probe or by permission
+        final Map<Object, ProbeRun> runs = new HashMap<>();
+        return new Function<Permission, ObservableSource<Permission>>() {
+            // Index of the next permission, they are emitted in the order of the request
+            private int mIndex;
 
-            PublishSubject<Permission> subject = mRxPermissionsFragment.get().getSubjectByPermission(permission);
-            // Create a new subject if not exists
-            if (subject == null) {
-                unrequestedPermissions.add(permission);
-                subject = PublishSubject.create();
-                mRxPermissionsFragment.get().setSubjectForPermission(permission, subject);
+            @Override
+            public ObservableSource<Permission> apply(Permission permission) {
+                final int id = request.ids[mIndex++];
+                final Scheduler probeScheduler = mProbeScheduler;
+                final DeviceQuirkRegistry.Probe probe = permission.granted && probeScheduler != null
+                        ? DeviceQuirkRegistry.probeFor(id) : null;
+                if (probe == null) {
+                    return Observable.just(permission);
+                }
+                return probe(permission, probe, probeScheduler, runs, request, results);
             }
+        };
+    }
 
-            list.add(subject);
+    /**
+     * Verifies a granted permission on the probe scheduler. If the probe doesn't answer in time,
+     * the permission is emitted as reported by the system.
+     */
+    private Observable<Permission> probe(final Permission permission, DeviceQuirkRegistry.Probe probe,
+                                         Scheduler probeScheduler, Map<Object, ProbeRun> runs,
+                                         PermissionRequest request, Object[] results) {
+        Boolean cached = ProbeResultCache.INSTANCE.get(permission.name);
+        if (cached != null) {
+            // No need to hop threads for a map lookup
+            return Observable.just(new Permission(permission.name, cached, permission.shouldShowRequestPermissionRationale));
+        }
+        final boolean shared = DeviceQuirkRegistry.isShared(probe);
+        ProbeRun run = runs.get(probe);
+        if (run == null && (shared || probe instanceof DeviceQuirkRegistry.BatchProbe)) {
+            String[] permissions = shared ? new String[]{permission.name} : grantedPermissions(probe, request, results);
+            run = new ProbeRun(probe, permissions, getContext(), probeScheduler);
+            runs.put(probe, run);
+        }
+        int index = run == null ? -1 : shared ? 0 : run.indexOf(permission.name);
+        if (index < 0) {
+            // Depends on the permission, or granted by the user after the batch was run
+            run = runs.get(permission.name);
+            if (run == null) {
+                run = new ProbeRun(probe, new String[]{permission.name}, getContext(), probeScheduler);
+                runs.put(permission.name, run);
+            }
+            index = 0;
+        }
+        final int resultIndex = index;
+        Observable<Permission> verified = run.results
+                .map(new Function<boolean[], Permission>() {
+                    @Override
+                    public Permission apply(boolean[] probed) {
+                        boolean granted = probed[resultIndex];
+                        ProbeResultCache.INSTANCE.put(permission.name, granted);
+                        return granted ? permission : new Permission(permission.name, false, permission.shouldShowRequestPermissionRationale);
+                    }
+                })
+                .timeout(mProbeTimeoutMillis, TimeUnit.MILLISECONDS, Observable.just(permission));
+        // Marshal the result back to the caller's thread
+        final Looper looper = Looper.myLooper();
+        if (looper != null) {
+            verified = verified.observeOn(Schedulers.from(new LooperExecutor(looper)));
         }
+        return verified;
+    }
 
-        if (!unrequestedPermissions.isEmpty()) {
-            String[] unrequestedPermissionsArray = unrequestedPermissions.toArray(new String[unrequestedPermissions.size()]);
-            requestPermissionsFromFragment(unrequestedPermissionsArray);
+    /**
+     * Returns the permissions of the request verified by the probe which were already granted
+     * when resolved.
+     */
+    private static String[] grantedPermissions(DeviceQuirkRegistry.Probe probe, PermissionRequest request, Object[] results) {
+        List<String> permissions = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] instanceof Permission && ((Permission) results[i]).granted
+                    && DeviceQuirkRegistry.probeFor(request.ids[i]) == probe) {
+                permissions.add(request.permissions[i]);
+            }
         }
-        return Observable.concat(Observable.fromIterable(list));
+        return permissions.toArray(new String[permissions.size()]);
     }
 
     /**
@@ -325,20 +358,24 @@ public class RxPermissions {
         return true;
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    void requestPermissionsFromFragment(String[] permissions) {
-        mRxPermissionsFragment.get().log("requestPermissionsFromFragment " + TextUtils.join(", ", permissions));
-        mRxPermissionsFragment.get().requestPermissions(permissions);
-    }
-
     /**
      * Returns true if the permission is already granted.
      * <p>
      * Always true if SDK &lt; 23.
      */
+    @Override
     @SuppressWarnings("WeakerAccess")
     public boolean isGranted(String permission) {
-        return !isMarshmallow() || mRxPermissionsFragment.get().isGranted(permission);
+        if (!isMarshmallow()) {
+            return true;
+        }
+        final RxPermissionsFragment fragment = mRxPermissionsFragment.peek();
+        final Context context = mRxPermissionsFragment.hostContext();
+        if (fragment == null && context != null) {
+            // No need to attach the fragment for a check
+            return mRxPermissionsFragment.getGrantStateCache().isGranted(context, permission);
+        }
+        return (fragment != null ? fragment : mRxPermissionsFragment.get()).isGranted(permission);
     }
 
     /**
@@ -346,17 +383,106 @@ public class RxPermissions {
      * <p>
      * Always false if SDK &lt; 23.
      */
+    @Override
     @SuppressWarnings("WeakerAccess")
     public boolean isRevoked(String permission) {
-        return isMarshmallow() && mRxPermissionsFragment.get().isRevoked(permission);
+        if (!isMarshmallow()) {
+            return false;
+        }
+        final RxPermissionsFragment fragment = mRxPermissionsFragment.peek();
+        final Context context = mRxPermissionsFragment.hostContext();
+        if (fragment == null && context != null) {
+            return mRxPermissionsFragment.getGrantStateCache().isRevoked(context, permission);
+        }
+        return (fragment != null ? fragment : mRxPermissionsFragment.get()).isRevoked(permission);
     }
 
-    boolean isMarshmallow() {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    /**
+     * Resolves in one pass the granted, revoked and rationale states of all the permissions.
+     * <p>
+     * Always all granted if SDK &lt; 23.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public PermissionSnapshot snapshot(final String... permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("RxPermissions.snapshot requires at least one input permission");
+        }
+        if (!isMarshmallow()) {
+            return PermissionSnapshot.allGranted(permissions);
+        }
+        final Activity activity = mRxPermissionsFragment.hostActivity();
+        if (activity == null) {
+            throw new IllegalStateException("RxPermissions.snapshot requires a host attached to an activity");
+        }
+        return PermissionSnapshot.take(activity, permissions, mRxPermissionsFragment.getGrantStateCache());
+    }
+
+    /**
+     * Returns a hot {@link Observable} emitting a {@link Permission} each time one of the
+     * permissions is granted or revoked outside of the app, typically from the system settings.
+     * <p>
+     * The watched permissions are checked when the host resumes, only once for all the
+     * subscribers, whatever the permissions they watch. Must be subscribed from the main thread.
+     * <p>
+     * Never emits if SDK &lt; 23.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Observable<Permission> observeChanges(final String... permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("RxPermissions.observeChanges requires at least one input permission");
+        }
+        if (!isMarshmallow()) {
+            return Observable.never();
+        }
+        final Set<String> watched = new HashSet<>(Arrays.asList(permissions));
+        final PermissionWatcher watcher = mRxPermissionsFragment.getWatcher();
+        return watcher.getChanges()
+                .filter(new Predicate<Permission>() {
+                    @Override
+                    public boolean test(Permission permission) {
+                        return watched.contains(permission.name);
+                    }
+                })
+                .doOnSubscribe(new Consumer<Disposable>() {
+                    @Override
+                    public void accept(Disposable disposable) {
+                        watcher.watch(permissions);
+                    }
+                })
+                .doOnDispose(new Action() {
+                    @Override
+                    public void run() {
+                        watcher.unwatch(permissions);
+                    }
+                })
+                .share();
+    }
+
+    /**
+     * Returns the context of the host, without attaching the fragment if possible.
+     */
+    private Context getContext() {
+        final Context context = mRxPermissionsFragment.hostContext();
+        return context != null ? context : mRxPermissionsFragment.get().getContext();
+    }
+
+    @Override
+    PermissionBackend backend() {
+        return mRxPermissionsFragment.get();
     }
 
-    void onRequestPermissionsResult(String permissions[], int[] grantResults) {
-        mRxPermissionsFragment.get().onRequestPermissionsResult(permissions, grantResults, new boolean[permissions.length]);
+    @Override
+    PermissionBackend peekBackend() {
+        return mRxPermissionsFragment.peek();
+    }
+
+    @Override
+    void log(String message) {
+        mRxPermissionsFragment.log(message);
+    }
+
+    boolean isMarshmallow() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
     }
 
     @FunctionalInterface
@@ -365,6 +491,14 @@ public class RxPermissions {
     }
 
 
+    /**
+     * Returns true if the permission has to be verified by a probe on this device.
+     */
+    @VisibleForTesting
+    boolean requiresSpecialHandle(String permission) {
+        return DeviceQuirkRegistry.probeFor(PermissionInterner.idOf(permission)) != null;
+    }
+
     /**
      * 特殊设备权限的处理
      *
@@ -372,152 +506,70 @@ public class RxPermissions {
      * @param context
      * @return
      */
+    @VisibleForTesting
     boolean specialHandle(String permission, Context context) {
-        if (!RxPermissionUtil.isSpecialDevice()) {
-            return true;
-        }
-        if (permission.equals(Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                || permission.equals(Manifest.permission.READ_EXTERNAL_STORAGE)) {
-            return RxPermissionUtil.isStorage();
-        } else if (permission.equals(Manifest.permission.ACCESS_COARSE_LOCATION)
-                || permission.equals(Manifest.permission.ACCESS_FINE_LOCATION)) {
-            return RxPermissionUtil.isLocation(context);
-        } else if (permission.equals(Manifest.permission.CAMERA)) {
-            return RxPermissionUtil.isCamera();
-        } else if (permission.equals(Manifest.permission.RECORD_AUDIO)) {
-            return RxPermissionUtil.isRecord();
-        }
-        return true;
+        DeviceQuirkRegistry.Probe probe = DeviceQuirkRegistry.probeFor(PermissionInterner.idOf(permission));
+        return probe == null || specialHandle(probe, permission, context);
     }
 
-    private static class RxPermissionUtil {
-        // 存储
-        private static final boolean isStorage() {
-            String filePath = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + UUID.randomUUID() + ".txt";
-            File file = new File(filePath);
-            try {
-                if (file.createNewFile()) {
-                    file.delete();
-                }
-                return true;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-        }
-
-        // 定位权限
-        private static final boolean isLocation(Context context) {
-            LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-            // 构建位置查询条件
-            Criteria criteria = new Criteria();
-            // 设置定位精确度 Criteria.ACCURACY_COARSE比较粗略，Criteria.ACCURACY_FINE则比较精细
-            //Criteria.ACCURACY_FINE,当使用该值时，在建筑物当中，可能定位不了,建议在对定位要求并不是很高的时候用Criteria.ACCURACY_COARSE，避免定位失败
-            // 查询精度：高
-            criteria.setAccuracy(Criteria.ACCURACY_FINE);
-            // 设置是否要求速度
-            criteria.setSpeedRequired(false);
-            // 是否查询海拨：否
-            criteria.setAltitudeRequired(false);
-            // 是否查询方位角 : 否
-            criteria.setBearingRequired(false);
-            // 是否允许付费：是
-            criteria.setCostAllowed(false);
-            // 电量要求：低
-            criteria.setPowerRequirement(Criteria.POWER_LOW);
-            // 返回最合适的符合条件的provider，第2个参数为true说明 , 如果只有一个provider是有效的,则返回当前provider
-            String bestProvider = locationManager.getBestProvider(criteria, true);
-            Location location = locationManager.getLastKnownLocation(bestProvider);
-            if (location == null) {
-                location = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-            }
-            if (location == null) {
-                return false;
-            }
-            return true;
+    /**
+     * Verifies the permission with its probe, unless its result is cached.
+     */
+    private boolean specialHandle(DeviceQuirkRegistry.Probe probe, String permission, Context context) {
+        Boolean cached = ProbeResultCache.INSTANCE.get(permission);
+        if (cached != null) {
+            return cached;
         }
+        boolean result = probe.isGranted(context, permission);
+        ProbeResultCache.INSTANCE.put(permission, result);
+        return result;
+    }
 
-
-        // 摄像头权限
-        private static final boolean isCamera() {
-            try {
-                //通过尝试打开相机的方式判断有无拍照权限（在6.0以下使用拥有root权限的管理软件可以管理权限）
-                boolean isCanUse = true;
-                Camera mCamera = null;
-                try {
-                    mCamera = Camera.open();
-                    Camera.Parameters mParameters = mCamera.getParameters();
-                    mCamera.setParameters(mParameters);
-                } catch (Exception e) {
-                    isCanUse = false;
-                } finally {
-                    if (mCamera != null) {
-                        try {
-                            mCamera.release();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            isCanUse = false;
-                        } finally {
-                            return isCanUse;
-                        }
-                    } else {
-                        return false;
+    /**
+     * Run of a probe on the probe scheduler, verifying one or several permissions at once.
+     */
+    private static final class ProbeRun {
+        final String[] permissions;
+        // The result of each permission, in the same order
+        final Observable<boolean[]> results;
+
+        ProbeRun(final DeviceQuirkRegistry.Probe probe, final String[] permissions, final Context context,
+                 Scheduler probeScheduler) {
+            this.permissions = permissions;
+            results = Observable.fromCallable(new Callable<boolean[]>() {
+                @Override
+                public boolean[] call() {
+                    if (probe instanceof DeviceQuirkRegistry.BatchProbe) {
+                        return ((DeviceQuirkRegistry.BatchProbe) probe).areGranted(context, permissions);
                     }
+                    return new boolean[]{probe.isGranted(context, permissions[0])};
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
+            })
+                    .subscribeOn(probeScheduler)
+                    .cache();
         }
 
-        // 录音权限
-        private static final boolean isRecord() {
-            try {
-                // 音频获取源
-                int audioSource = MediaRecorder.AudioSource.MIC;
-                // 设置音频采样率，44100是目前的标准，但是某些设备仍然支持22050，16000，11025
-                int sampleRateInHz = 44100;
-                // 设置音频的录制的声道CHANNEL_IN_STEREO为双声道，CHANNEL_CONFIGURATION_MONO为单声道
-                int channelConfig = AudioFormat.CHANNEL_IN_STEREO;
-                // 音频数据格式:PCM 16位每个样本。保证设备支持。PCM 8位每个样本。不一定能得到设备支持。
-                int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-                // 缓冲区字节大小
-                int bufferSizeInBytes;
-                boolean flag;
-                bufferSizeInBytes = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
-                AudioRecord audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes);
-                //开始录制音频
-                try {
-                    // 防止某些手机崩溃，例如联想
-                    audioRecord.startRecording();
-                } catch (IllegalStateException e) {
-                    e.printStackTrace();
-                } finally {
-                    /**
-                     * 根据开始录音判断是否有录音权限
-                     */
-                    if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING)
-                        flag = false;
-                    else
-                        flag = true;
-                    audioRecord.stop();
-                    audioRecord.release();
-                    return flag;
+        int indexOf(String permission) {
+            for (int i = 0; i < permissions.length; i++) {
+                if (permissions[i].equals(permission)) {
+                    return i;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
             }
+            return -1;
         }
-        // —————————————————————私有方法———————————————————
+    }
 
-        private static final boolean isSpecialDevice() {
-            return Build.BRAND.toLowerCase().equals("smartisan")
-                    || Build.BRAND.toLowerCase().equals("xiaomi") || Build.BRAND.toLowerCase().equals("oppo") || Build.BRAND.toLowerCase().equals("vivo")
-                    || Build.BRAND.toLowerCase().equals("lenovo") || Build.BRAND.toLowerCase().equals("meizu");
-        }
+    private static class LooperExecutor implements Executor {
 
-    }
+        private final Handler handler;
 
+        LooperExecutor(Looper looper) {
+            handler = new Handler(looper);
+        }
 
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+    }
 }
@@ -14,46 +14,254 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import io.reactivex.subjects.PublishSubject;
 
-public class RxPermissionsFragment extends Fragment {
+public class RxPermissionsFragment extends Fragment implements PermissionBackend {
 
-    private static final int PERMISSIONS_REQUEST_CODE = 42;
+    @VisibleForTesting
+    static final int FIRST_REQUEST_CODE = 42;
+    // The support library only allows the lower 16 bits for the request code.
+    private static final int MAX_REQUEST_CODE = 0xffff;
 
-    // Contains all the current permission requests.
+    // Contains all the current permission requests, by permission id, see PermissionInterner.
     // Once granted or denied, they are removed from it.
-    private Map<String, PublishSubject<Permission>> mSubjects = new HashMap<>();
+    private final PendingSubjects mSubjects = new PendingSubjects();
+    // Contains the permissions of each request sent to the system, by request code. Written from
+    // the trigger threads and read from the main thread, guarded by itself like the counter.
+    private final SparseArray<String[]> mInFlightRequests = new SparseArray<>();
+    private int mNextRequestCode = FIRST_REQUEST_CODE;
+    // Evicts a pending subject once all the requests holding it have been released.
+    private final PermissionResult.Callback mReleaseCallback = new PermissionResult.Callback() {
+        @Override
+        public void onReleased(PermissionResult result) {
+            releaseSubject(result);
+        }
+    };
+    // Delay after which a request still not answered by the system is denied, 0 to wait forever.
+    private long mPendingRequestTimeoutMillis;
     private boolean mLogging;
 
+    // Requests made before onCreate, when attached with an asynchronous commit. They are sent
+    // once created, meanwhile the checks go through the host context.
+    private final List<String[]> mRequestsBeforeCreate = new ArrayList<>();
+    private boolean mCreated;
+    private Context mHostContext;
+
+    // Permissions waiting for the next main looper idle to be requested all together,
+    // only used once enabled with setRequestCoalescing(true).
+    private boolean mCoalesceRequests;
+    private final Set<String> mQueuedPermissions = new LinkedHashSet<>();
+    private boolean mFlushScheduled;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final MessageQueue.IdleHandler mFlushIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            flushQueuedPermissions();
+            return false;
+        }
+    };
+    private final Runnable mScheduleFlush = new Runnable() {
+        @Override
+        public void run() {
+            Looper.myQueue().addIdleHandler(mFlushIdleHandler);
+        }
+    };
+
+    // Shared with the FragmentHandle, which owns it
+    private volatile GrantStateCache mGrantStateCache = new GrantStateCache();
+
     public RxPermissionsFragment() {
     }
 
+    @Override
+    public void onAttach(Context context) {
+        super.onAttach(context);
+        // Don't retain the host beyond the attach
+        mHostContext = null;
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
+        String[][] requests;
+        synchronized (mRequestsBeforeCreate) {
+            mCreated = true;
+            requests = mRequestsBeforeCreate.toArray(new String[mRequestsBeforeCreate.size()][]);
+            mRequestsBeforeCreate.clear();
+        }
+        for (String[] permissions : requests) {
+            log("Requesting permissions queued before attach " + TextUtils.join(", ", permissions));
+            requestPermissionsInFlight(permissions);
+        }
+    }
+
+    /**
+     * Context used for the checks until the fragment is attached.
+     */
+    void setHostContext(Context hostContext) {
+        mHostContext = hostContext;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            // The user may have changed the permissions from the system settings. Done by
+            // FragmentHandle from the activity lifecycle callbacks when they exist.
+            ProbeResultCache.INSTANCE.invalidate();
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestPermissions(@NonNull String[] permissions) {
+        if (!mCoalesceRequests) {
+            requestPermissionsInFlight(permissions);
+            return;
+        }
+        synchronized (mQueuedPermissions) {
+            Collections.addAll(mQueuedPermissions, permissions);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mScheduleFlush.run();
+        } else {
+            mMainHandler.post(mScheduleFlush);
+        }
     }
 
+    /**
+     * Requests in a single system dialog all the permissions queued since the last flush.
+     */
+    @VisibleForTesting
     @TargetApi(Build.VERSION_CODES.M)
-    void requestPermissions(@NonNull String[] permissions) {
-        requestPermissions(permissions, PERMISSIONS_REQUEST_CODE);
+    void flushQueuedPermissions() {
+        String[] permissions;
+        synchronized (mQueuedPermissions) {
+            permissions = mQueuedPermissions.toArray(new String[mQueuedPermissions.size()]);
+            mQueuedPermissions.clear();
+            mFlushScheduled = false;
+        }
+        if (permissions.length == 0) {
+            return;
+        }
+        log("Requesting coalesced permissions " + TextUtils.join(", ", permissions));
+        requestPermissionsInFlight(permissions);
+    }
+
+    /**
+     * Sends the permissions request to the system with its own request code, so that its result
+     * is routed to it even if other requests are pending.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void requestPermissionsInFlight(@NonNull final String[] permissions) {
+        synchronized (mRequestsBeforeCreate) {
+            if (!mCreated) {
+                mRequestsBeforeCreate.add(permissions);
+                return;
+            }
+        }
+        final int requestCode;
+        synchronized (mInFlightRequests) {
+            requestCode = nextRequestCode();
+            mInFlightRequests.put(requestCode, permissions);
+        }
+        if (mPendingRequestTimeoutMillis > 0) {
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    onPendingRequestTimeout(requestCode, permissions);
+                }
+            }, mPendingRequestTimeoutMillis);
+        }
+        requestPermissions(permissions, requestCode);
+    }
+
+    /**
+     * Denies the permissions of a request the system never answered, so that their subscribers
+     * don't wait forever.
+     */
+    private void onPendingRequestTimeout(int requestCode, String[] permissions) {
+        synchronized (mInFlightRequests) {
+            if (mInFlightRequests.get(requestCode) != permissions) {
+                // Already answered
+                return;
+            }
+            mInFlightRequests.remove(requestCode);
+        }
+        log("Pending request timed out " + TextUtils.join(", ", permissions));
+        int[] grantResults = new int[permissions.length];
+        Arrays.fill(grantResults, PackageManager.PERMISSION_DENIED);
+        onRequestPermissionsResult(permissions, grantResults, new boolean[permissions.length]);
+    }
+
+    @VisibleForTesting
+    int getInFlightRequestCount() {
+        synchronized (mInFlightRequests) {
+            return mInFlightRequests.size();
+        }
+    }
+
+    void setPendingRequestTimeout(long timeoutMillis) {
+        mPendingRequestTimeoutMillis = timeoutMillis;
+    }
+
+    // Must hold the mInFlightRequests lock
+    private int nextRequestCode() {
+        int requestCode;
+        do {
+            requestCode = mNextRequestCode;
+            mNextRequestCode = requestCode == MAX_REQUEST_CODE ? FIRST_REQUEST_CODE : requestCode + 1;
+        } while (mInFlightRequests.indexOfKey(requestCode) >= 0);
+        return requestCode;
+    }
+
+    void setRequestCoalescing(boolean enabled) {
+        mCoalesceRequests = enabled;
     }
 
     @TargetApi(Build.VERSION_CODES.M)
     public void onRequestPermissionsResult(int requestCode, @NonNull String permissions[], @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
 
-        if (requestCode != PERMISSIONS_REQUEST_CODE) return;
+        String[] requestedPermissions;
+        synchronized (mInFlightRequests) {
+            requestedPermissions = mInFlightRequests.get(requestCode);
+            mInFlightRequests.remove(requestCode);
+        }
+        if (requestedPermissions == null) {
+            // Unknown request, still deliver what can be delivered.
+            Log.w(RxPermissions.TAG, "RxPermissions.onRequestPermissionsResult invoked for an unknown request code " + requestCode);
+        } else if (permissions.length == 0) {
+            // The request has been interrupted, the requested permissions are denied.
+            permissions = requestedPermissions;
+            grantResults = new int[permissions.length];
+            Arrays.fill(grantResults, PackageManager.PERMISSION_DENIED);
+        }
 
         boolean[] shouldShowRequestPermissionRationale = new boolean[permissions.length];
 
@@ -64,61 +272,150 @@ public class RxPermissionsFragment extends Fragment {
         onRequestPermissionsResult(permissions, grantResults, shouldShowRequestPermissionRationale);
     }
 
-    void onRequestPermissionsResult(String permissions[], int[] grantResults, boolean[] shouldShowRequestPermissionRationale) {
+    @Override
+    public void onRequestPermissionsResult(String permissions[], int[] grantResults, boolean[] shouldShowRequestPermissionRationale) {
+        ProbeResultCache.INSTANCE.invalidate();
         for (int i = 0, size = permissions.length; i < size; i++) {
             log("onRequestPermissionsResult  " + permissions[i]);
-            // Find the corresponding subject
-            PublishSubject<Permission> subject = mSubjects.get(permissions[i]);
-            if (subject == null) {
+            boolean granted = grantResults[i] == PackageManager.PERMISSION_GRANTED;
+            // Cached before the subscribers see the result, whatever they check
+            mGrantStateCache.putGranted(permissions[i], granted);
+            if (!mSubjects.dispatch(permissions[i], granted, shouldShowRequestPermissionRationale[i])) {
                 // No subject found
                 Log.e(RxPermissions.TAG, "RxPermissions.onRequestPermissionsResult invoked but didn't find the corresponding permission request.");
-                return;
             }
-            mSubjects.remove(permissions[i]);
-            boolean granted = grantResults[i] == PackageManager.PERMISSION_GRANTED;
-            subject.onNext(new Permission(permissions[i], granted, shouldShowRequestPermissionRationale[i]));
-            subject.onComplete();
         }
     }
 
+    @Override
     @TargetApi(Build.VERSION_CODES.M)
-    boolean isGranted(String permission) {
-        final FragmentActivity fragmentActivity = getActivity();
-        if (fragmentActivity == null) {
-            throw new IllegalStateException("This fragment must be attached to an activity.");
-        }
-        return fragmentActivity.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+    public boolean isGranted(String permission) {
+        return mGrantStateCache.isGranted(requireHostContext(), permission);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public boolean isRevoked(String permission) {
+        return mGrantStateCache.isRevoked(requireHostContext(), permission);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    static boolean checkGranted(Context context, String permission) {
+        return context.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
     }
 
     @TargetApi(Build.VERSION_CODES.M)
-    boolean isRevoked(String permission) {
+    static boolean checkRevoked(Context context, String permission) {
+        return context.getPackageManager().isPermissionRevokedByPolicy(permission, context.getPackageName());
+    }
+
+    private Context requireHostContext() {
         final FragmentActivity fragmentActivity = getActivity();
-        if (fragmentActivity == null) {
+        if (fragmentActivity != null) {
+            return fragmentActivity;
+        }
+        final Context hostContext = mHostContext;
+        if (hostContext == null) {
             throw new IllegalStateException("This fragment must be attached to an activity.");
         }
-        return fragmentActivity.getPackageManager().isPermissionRevokedByPolicy(permission, getActivity().getPackageName());
+        return hostContext;
+    }
+
+    void setGrantStateCache(@NonNull GrantStateCache grantStateCache) {
+        mGrantStateCache = grantStateCache;
+    }
+
+    GrantStateCache getGrantStateCache() {
+        return mGrantStateCache;
     }
 
     public void setLogging(boolean logging) {
         mLogging = logging;
     }
 
-    public PublishSubject<Permission> getSubjectByPermission(@NonNull String permission) {
-        return mSubjects.get(permission);
+    PermissionResult getSubject(int id) {
+        return mSubjects.get(id);
     }
 
     public boolean containsByPermission(@NonNull String permission) {
-        return mSubjects.containsKey(permission);
+        int id = PermissionInterner.idOf(permission);
+        return id >= 0 && getSubject(id) != null;
+    }
+
+    /**
+     * Returns a subject emitting the result of the current request of the permission, or null
+     * if there's none.
+     *
+     * @deprecated the current requests are no longer held by PublishSubject instances, only
+     * kept for compatibility. Use {@link #containsByPermission(String)} to know if a permission
+     * has a current request.
+     */
+    @Deprecated
+    public PublishSubject<Permission> getSubjectByPermission(@NonNull String permission) {
+        int id = PermissionInterner.idOf(permission);
+        PermissionResult result = id < 0 ? null : getSubject(id);
+        if (result == null) {
+            return null;
+        }
+        PublishSubject<Permission> subject = PublishSubject.create();
+        result.subscribe(subject);
+        return subject;
     }
 
+    /**
+     * Registers a current request of the permission, whose result is emitted by the subject.
+     *
+     * @deprecated the current requests are no longer held by PublishSubject instances, only
+     * kept for compatibility. The requests made through {@link RxPermissions} are registered
+     * already.
+     */
+    @Deprecated
     public void setSubjectForPermission(@NonNull String permission, @NonNull PublishSubject<Permission> subject) {
-        mSubjects.put(permission, subject);
+        // Never released, evicted once answered like the subjects it replaces
+        newSubject(PermissionInterner.intern(permission)).subscribe(subject);
+    }
+
+    @Override
+    public boolean containsAll(@NonNull PermissionSet permissions) {
+        return mSubjects.containsAll(permissions);
     }
 
-    void log(String message) {
+    /**
+     * Returns the current request of the permission, acquired by the caller, or null if there's
+     * none. The caller has to release it once done with it.
+     */
+    @Override
+    public PermissionResult acquireSubject(int id) {
+        return mSubjects.acquire(id);
+    }
+
+    /**
+     * Creates and registers the subject holding the result of a permission request, acquired by
+     * the caller. It's evicted once all the requests holding it have released it.
+     */
+    @Override
+    public PermissionResult newSubject(int id) {
+        PermissionResult subject = new PermissionResult(id, mReleaseCallback);
+        subject.acquire();
+        mSubjects.put(id, subject);
+        return subject;
+    }
+
+    private void releaseSubject(PermissionResult subject) {
+        final FragmentActivity fragmentActivity = getActivity();
+        if (fragmentActivity != null && fragmentActivity.isChangingConfigurations()) {
+            // The requests will be back after the configuration change, see RxPermissions.pending
+            return;
+        }
+        if (mSubjects.removeIfReleased(subject)) {
+            log("No more requests for " + subject.permission);
+        }
+    }
+
+    @Override
+    public void log(String message) {
         if (mLogging) {
             Log.d(RxPermissions.TAG, message);
         }
     }
-
 }
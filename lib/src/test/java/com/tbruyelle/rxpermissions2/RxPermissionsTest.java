@@ -17,10 +17,19 @@ package com.tbruyelle.rxpermissions2;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.AppOpsManager;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,20 +39,34 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.android.controller.ActivityController;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowEnvironment;
+import org.robolectric.shadows.ShadowLooper;
 
+import io.reactivex.BackpressureStrategy;
 import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.functions.Function;
 import io.reactivex.observers.TestObserver;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
 import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subscribers.TestSubscriber;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -51,14 +74,16 @@ import static org.mockito.Mockito.when;
 @Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.M)
 public class RxPermissionsTest {
 
+    private ActivityController<FragmentActivity> mActivityController;
+
     private FragmentActivity mActivity;
 
     private RxPermissions mRxPermissions;
 
     @Before
     public void setup() {
-        ActivityController<FragmentActivity> activityController = Robolectric.buildActivity(FragmentActivity.class);
-        mActivity = spy(activityController.setup().get());
+        mActivityController = Robolectric.buildActivity(FragmentActivity.class);
+        mActivity = spy(mActivityController.setup().get());
         mRxPermissions = spy(new RxPermissions(mActivity));
         mRxPermissions.mRxPermissionsFragment = spy(mRxPermissions.mRxPermissionsFragment);
         final RxPermissionsFragment rxPermissionsFragment = spy(mRxPermissions.mRxPermissionsFragment.get());
@@ -70,6 +95,14 @@ public class RxPermissionsTest {
         doReturn(false).when(mRxPermissions).isRevoked(anyString());
     }
 
+    @After
+    public void tearDown() {
+        DeviceQuirkRegistry.reset();
+        RxJavaPlugins.reset();
+        RxPermissions.setProbeCacheTtl(0, TimeUnit.MILLISECONDS);
+        RxPermissionUtil.resetStorageAccess();
+    }
+
     private Observable<Object> trigger() {
         return Observable.just(RxPermissions.TRIGGER);
     }
@@ -120,6 +153,24 @@ public class RxPermissionsTest {
         sub.assertValue(new Permission(permission, true));
     }
 
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_compiledDuplicates_grantedOnce() {
+        TestObserver<Permission> sub = new TestObserver<>();
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        when(mRxPermissions.isGranted(permission)).thenReturn(false);
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+        PermissionRequest request = RxPermissions.compile(permission, permission);
+
+        trigger().compose(mRxPermissions.ensureEach(request)).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+
+        assertEquals(1, request.size());
+        sub.assertNoErrors();
+        sub.assertTerminated();
+        sub.assertValue(new Permission(permission, true));
+    }
+
     @Test
     @TargetApi(Build.VERSION_CODES.M)
     public void eachSubscriptionCombined_granted() {
@@ -462,6 +513,512 @@ public class RxPermissionsTest {
         sub.assertValues(new Permission(permissions[0] + ", " + permissions[1], false));
     }
 
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_unknownPermissionResult_othersDelivered() {
+        TestObserver<Permission> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+        when(mRxPermissions.isGranted(permission)).thenReturn(false);
+
+        trigger().compose(mRxPermissions.ensureEach(permission)).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(
+                new String[]{Manifest.permission.READ_PHONE_STATE, permission},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED});
+
+        sub.assertNoErrors();
+        sub.assertTerminated();
+        sub.assertValue(new Permission(permission, true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_disposed_subjectEvicted() {
+        String permission = Manifest.permission.CAMERA;
+        when(mRxPermissions.isGranted(permission)).thenReturn(false);
+
+        TestObserver<Permission> sub = trigger().compose(mRxPermissions.<Object>ensureEach(permission)).test();
+        assertTrue(mRxPermissions.mRxPermissionsFragment.get().containsByPermission(permission));
+        sub.dispose();
+
+        assertFalse(mRxPermissions.mRxPermissionsFragment.get().containsByPermission(permission));
+    }
+
+    @Test
+    public void eachSubscription_disposedBeforeSubscribing_subjectsEvicted() {
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO};
+
+        TestObserver<Permission> sub = trigger().compose(mRxPermissions.<Object>ensureEach(permissions)).test();
+        sub.dispose();
+
+        // The RECORD_AUDIO result was never subscribed, waiting for the CAMERA one
+        assertFalse(mRxPermissions.mRxPermissionsFragment.get().containsByPermission(Manifest.permission.CAMERA));
+        assertFalse(mRxPermissions.mRxPermissionsFragment.get().containsByPermission(Manifest.permission.RECORD_AUDIO));
+    }
+
+    @Test
+    public void eachSubscription_otherRequestDisposed_keepsSubjectNotSubscribedYet() {
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO};
+
+        // Resolves the RECORD_AUDIO result, only subscribed once the CAMERA one is emitted
+        TestObserver<Permission> first = trigger().compose(mRxPermissions.<Object>ensureEach(permissions)).test();
+        TestObserver<Permission> second = trigger().compose(mRxPermissions.<Object>ensureEach(Manifest.permission.RECORD_AUDIO)).test();
+        second.dispose();
+        mRxPermissions.onRequestPermissionsResult(permissions,
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED});
+
+        first.assertResult(new Permission(Manifest.permission.CAMERA, true),
+                new Permission(Manifest.permission.RECORD_AUDIO, true));
+    }
+
+    @Test
+    public void fragmentHandle_sharedByFragmentManager() {
+        RxPermissions first = new RxPermissions(mActivity);
+        RxPermissions second = new RxPermissions(mActivity);
+
+        assertSame(first.mRxPermissionsFragment, second.mRxPermissionsFragment);
+        assertSame(first.mRxPermissionsFragment.get(), second.mRxPermissionsFragment.get());
+    }
+
+    @Test
+    public void fragmentHandle_keptBetweenInstances() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        FragmentActivity otherActivity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        WeakReference<FragmentHandle> handle = new WeakReference<>(new RxPermissions(activity).mRxPermissionsFragment);
+        // No longer the last handle returned
+        new RxPermissions(otherActivity);
+        System.gc();
+
+        assertSame(handle.get(), new RxPermissions(activity).mRxPermissionsFragment);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void subscription_alreadyGranted_fragmentNotAttached() {
+        FragmentActivity activity = spy(Robolectric.buildActivity(FragmentActivity.class).setup().get());
+        when(activity.checkSelfPermission(Manifest.permission.CAMERA)).thenReturn(PackageManager.PERMISSION_GRANTED);
+        RxPermissions rxPermissions = new RxPermissions(activity);
+
+        TestObserver<Boolean> sub = rxPermissions.request(Manifest.permission.CAMERA).test();
+
+        sub.assertResult(true);
+        assertNull(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void checks_fragmentNotAttached() {
+        FragmentActivity activity = spy(Robolectric.buildActivity(FragmentActivity.class).setup().get());
+        when(activity.checkSelfPermission(Manifest.permission.CAMERA)).thenReturn(PackageManager.PERMISSION_GRANTED);
+        RxPermissions rxPermissions = new RxPermissions(activity);
+        rxPermissions.setGrantStateCache(true);
+
+        assertTrue(rxPermissions.isGranted(Manifest.permission.CAMERA));
+        assertTrue(rxPermissions.isGranted(Manifest.permission.CAMERA));
+        assertTrue(rxPermissions.snapshot(Manifest.permission.CAMERA).isGranted(Manifest.permission.CAMERA));
+        rxPermissions.observeChanges(Manifest.permission.CAMERA).test();
+
+        verify(activity, times(3)).checkSelfPermission(Manifest.permission.CAMERA);
+        assertEquals(1, rxPermissions.getGrantStateCacheHits());
+        assertNull(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG));
+    }
+
+    @Test
+    public void settings_fragmentNotAttached() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        RxPermissions rxPermissions = new RxPermissions(activity);
+
+        rxPermissions.setAsyncAttach(true);
+        rxPermissions.setRequestCoalescing(true);
+        rxPermissions.setPendingRequestTimeout(1, TimeUnit.MINUTES);
+        rxPermissions.setGrantStateCache(true);
+        assertEquals(0, rxPermissions.getGrantStateCacheHits());
+
+        assertNull(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG));
+        assertSame(rxPermissions.mRxPermissionsFragment.getGrantStateCache(),
+                rxPermissions.mRxPermissionsFragment.get().getGrantStateCache());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void asyncAttach_requestBeforeCreate_sentOnceCreated() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        RxPermissions rxPermissions = new RxPermissions(activity);
+        rxPermissions.setAsyncAttach(true);
+
+        // Keeps the commit pending
+        ShadowLooper.pauseMainLooper();
+        TestObserver<Permission> sub = rxPermissions.requestEach(Manifest.permission.CAMERA).test();
+        RxPermissionsFragment fragment = rxPermissions.mRxPermissionsFragment.get();
+
+        assertFalse(fragment.isAdded());
+        assertEquals(0, fragment.getInFlightRequestCount());
+        sub.assertEmpty();
+        ShadowLooper.unPauseMainLooper();
+
+        assertTrue(fragment.isAdded());
+        assertEquals(1, fragment.getInFlightRequestCount());
+        fragment.onRequestPermissionsResult(RxPermissionsFragment.FIRST_REQUEST_CODE,
+                new String[]{Manifest.permission.CAMERA}, new int[]{PackageManager.PERMISSION_GRANTED});
+        sub.assertResult(new Permission(Manifest.permission.CAMERA, true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void pendingRequestTimeout_orphanedRequest_denied() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        RxPermissions rxPermissions = new RxPermissions(activity);
+        rxPermissions.setPendingRequestTimeout(1, TimeUnit.SECONDS);
+
+        TestObserver<Permission> sub = rxPermissions.requestEach(Manifest.permission.CAMERA).test();
+        ShadowLooper.idleMainLooper(999, TimeUnit.MILLISECONDS);
+        sub.assertEmpty();
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+
+        sub.assertResult(new Permission(Manifest.permission.CAMERA, false));
+        assertEquals(0, rxPermissions.mRxPermissionsFragment.get().getInFlightRequestCount());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void pendingRequestTimeout_answeredRequest_notDenied() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        RxPermissions rxPermissions = new RxPermissions(activity);
+        rxPermissions.setPendingRequestTimeout(1, TimeUnit.SECONDS);
+
+        TestObserver<Permission> answered = rxPermissions.requestEach(Manifest.permission.CAMERA).test();
+        RxPermissionsFragment fragment = rxPermissions.mRxPermissionsFragment.get();
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+        fragment.onRequestPermissionsResult(RxPermissionsFragment.FIRST_REQUEST_CODE,
+                new String[]{Manifest.permission.CAMERA}, new int[]{PackageManager.PERMISSION_GRANTED});
+        // Still pending when the timeout of the answered request runs
+        TestObserver<Permission> pending = rxPermissions.requestEach(Manifest.permission.CAMERA).test();
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+
+        answered.assertResult(new Permission(Manifest.permission.CAMERA, true));
+        pending.assertEmpty();
+        assertEquals(1, fragment.getInFlightRequestCount());
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+        pending.assertResult(new Permission(Manifest.permission.CAMERA, false));
+    }
+
+    @Test
+    public void deviceQuirkRegistry_customProbe() {
+        String permission = "com.tbruyelle.rxpermissions2.permission.QUIRK";
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.Probe() {
+            @Override
+            public boolean isGranted(Context context, String permission) {
+                return false;
+            }
+        }, permission);
+
+        assertTrue(mRxPermissions.requiresSpecialHandle(permission));
+        assertFalse(mRxPermissions.specialHandle(permission, mActivity));
+        assertFalse(mRxPermissions.requiresSpecialHandle(Manifest.permission.READ_PHONE_STATE));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_probed_keepsOrder() {
+        String denied = "com.tbruyelle.rxpermissions2.permission.QUIRK_DENIED";
+        String granted = "com.tbruyelle.rxpermissions2.permission.QUIRK_GRANTED";
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.Probe() {
+            @Override
+            public boolean isGranted(Context context, String permission) {
+                return permission.endsWith("GRANTED");
+            }
+        }, denied, granted);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        mRxPermissions.setProbeScheduler(Schedulers.trampoline());
+
+        TestObserver<Permission> sub = trigger().compose(mRxPermissions.ensureEach(denied, granted)).test();
+
+        sub.assertResult(new Permission(denied, false), new Permission(granted, true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_sharedProbe_runsOnceAndKeepsOrder() throws InterruptedException {
+        final String first = "com.tbruyelle.rxpermissions2.permission.SHARED_FIRST";
+        final String second = "com.tbruyelle.rxpermissions2.permission.SHARED_SECOND";
+        final String unprobed = Manifest.permission.READ_PHONE_STATE;
+        final AtomicInteger probes = new AtomicInteger();
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.SharedProbe() {
+            @Override
+            public boolean isGranted(Context context, String permission) {
+                probes.incrementAndGet();
+                try {
+                    // Still running when the second permission joins the run
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        }, first, second);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        mRxPermissions.setProbeScheduler(Schedulers.newThread());
+        RxPermissions.setProbeCacheTtl(1, TimeUnit.HOURS);
+
+        // From a thread without looper, the results are emitted from the probe threads
+        final TestObserver<Permission> sub = new TestObserver<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mRxPermissions.requestEach(first, unprobed, second).subscribe(sub);
+            }
+        });
+        thread.start();
+        thread.join();
+        sub.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+        sub.assertResult(new Permission(first, false), new Permission(unprobed, true), new Permission(second, false));
+        assertEquals(1, probes.get());
+        // Cached for both permissions
+        mRxPermissions.requestEach(second).test().assertResult(new Permission(second, false));
+        assertEquals(1, probes.get());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_storageProbe_runsOnceForReadAndWrite() {
+        String read = Manifest.permission.READ_EXTERNAL_STORAGE;
+        String write = Manifest.permission.WRITE_EXTERNAL_STORAGE;
+        final AtomicInteger probes = new AtomicInteger();
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.BatchProbe() {
+            @Override
+            public boolean[] areGranted(Context context, String[] permissions) {
+                probes.incrementAndGet();
+                return ((DeviceQuirkRegistry.BatchProbe) DeviceQuirkRegistry.STORAGE_PROBE).areGranted(context, permissions);
+            }
+        }, read, write);
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED_READ_ONLY);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        TestScheduler probeScheduler = new TestScheduler();
+        mRxPermissions.setProbeScheduler(probeScheduler);
+
+        // Both runs would be subscribed before either has run
+        TestObserver<Permission> sub = mRxPermissions.requestEach(read, write).test();
+        probeScheduler.triggerActions();
+
+        sub.assertResult(new Permission(read, true), new Permission(write, false));
+        assertEquals(1, probes.get());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_probeScheduler() {
+        String permission = "com.tbruyelle.rxpermissions2.permission.QUIRK_SCHEDULED";
+        final AtomicInteger probes = new AtomicInteger();
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.Probe() {
+            @Override
+            public boolean isGranted(Context context, String permission) {
+                probes.incrementAndGet();
+                return false;
+            }
+        }, permission);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        TestScheduler probeScheduler = new TestScheduler();
+        mRxPermissions.setProbeScheduler(probeScheduler);
+
+        TestObserver<Permission> sub = mRxPermissions.requestEach(permission).test();
+        sub.assertEmpty();
+        assertEquals(0, probes.get());
+        probeScheduler.triggerActions();
+
+        assertEquals(1, probes.get());
+        sub.assertResult(new Permission(permission, false));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_probeTimeout_keepsSystemResult() {
+        String permission = "com.tbruyelle.rxpermissions2.permission.QUIRK_TIMEOUT";
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.Probe() {
+            @Override
+            public boolean isGranted(Context context, String permission) {
+                return false;
+            }
+        }, permission);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        final TestScheduler timeoutScheduler = new TestScheduler();
+        RxJavaPlugins.setComputationSchedulerHandler(new Function<Scheduler, Scheduler>() {
+            @Override
+            public Scheduler apply(Scheduler scheduler) {
+                return timeoutScheduler;
+            }
+        });
+        // Never runs the probe
+        mRxPermissions.setProbeScheduler(new TestScheduler());
+        mRxPermissions.setProbeTimeout(1, TimeUnit.SECONDS);
+
+        TestObserver<Permission> sub = mRxPermissions.requestEach(permission).test();
+        timeoutScheduler.advanceTimeBy(999, TimeUnit.MILLISECONDS);
+        sub.assertEmpty();
+        timeoutScheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+
+        sub.assertResult(new Permission(permission, true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void probeCache_expires() {
+        String permission = "com.tbruyelle.rxpermissions2.permission.QUIRK_CACHED";
+        AtomicInteger probes = countingProbe(permission);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        TestScheduler probeScheduler = new TestScheduler();
+        mRxPermissions.setProbeScheduler(probeScheduler);
+        RxPermissions.setProbeCacheTtl(50, TimeUnit.MILLISECONDS);
+
+        mRxPermissions.requestEach(permission).test();
+        probeScheduler.triggerActions();
+        TestObserver<Permission> cached = mRxPermissions.requestEach(permission).test();
+        cached.assertResult(new Permission(permission, true));
+        assertEquals(1, probes.get());
+        SystemClock.sleep(51);
+        TestObserver<Permission> expired = mRxPermissions.requestEach(permission).test();
+        probeScheduler.triggerActions();
+
+        expired.assertResult(new Permission(permission, true));
+        assertEquals(2, probes.get());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void probeCache_invalidatedOnResume() {
+        String permission = "com.tbruyelle.rxpermissions2.permission.QUIRK_RESUMED";
+        AtomicInteger probes = countingProbe(permission);
+        doReturn(true).when(mRxPermissions).isGranted(anyString());
+        TestScheduler probeScheduler = new TestScheduler();
+        mRxPermissions.setProbeScheduler(probeScheduler);
+        RxPermissions.setProbeCacheTtl(1, TimeUnit.HOURS);
+
+        mRxPermissions.requestEach(permission).test();
+        probeScheduler.triggerActions();
+        mActivityController.pause().resume();
+        mRxPermissions.requestEach(permission).test();
+        probeScheduler.triggerActions();
+
+        assertEquals(2, probes.get());
+    }
+
+    private static AtomicInteger countingProbe(String permission) {
+        final AtomicInteger probes = new AtomicInteger();
+        DeviceQuirkRegistry.register(null, new DeviceQuirkRegistry.Probe() {
+            @Override
+            public boolean isGranted(Context context, String permission) {
+                probes.incrementAndGet();
+                return true;
+            }
+        }, permission);
+        return probes;
+    }
+
+    @Test
+    public void storageAccessible_readOnly() {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED_READ_ONLY);
+
+        assertTrue(RxPermissionUtil.isStorageAccessible(false));
+        assertFalse(RxPermissionUtil.isStorageAccessible(true));
+    }
+
+    @Test
+    public void storageAccessible_onlyGrantedCached() {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_UNMOUNTED);
+        assertFalse(RxPermissionUtil.isStorageAccessible(false));
+        assertFalse(RxPermissionUtil.isStorageAccessible(true));
+
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        assertTrue(RxPermissionUtil.isStorageAccessible(true));
+
+        // Both accesses were found granted by the same check
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_UNMOUNTED);
+        assertTrue(RxPermissionUtil.isStorageAccessible(false));
+        assertTrue(RxPermissionUtil.isStorageAccessible(true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void appOpsGrantVerifier() {
+        AppOpsManager appOps = mock(AppOpsManager.class);
+        when(mActivity.getSystemService(Context.APP_OPS_SERVICE)).thenReturn(appOps);
+        String cameraOp = AppOpsManager.permissionToOp(Manifest.permission.CAMERA);
+        String recordOp = AppOpsManager.permissionToOp(Manifest.permission.RECORD_AUDIO);
+        when(appOps.checkOpNoThrow(eq(cameraOp), anyInt(), anyString())).thenReturn(AppOpsManager.MODE_IGNORED);
+        when(appOps.checkOpNoThrow(eq(recordOp), anyInt(), anyString())).thenReturn(AppOpsManager.MODE_ALLOWED);
+
+        assertEquals(Boolean.FALSE, AppOpsGrantVerifier.INSTANCE.verify(mActivity, Manifest.permission.CAMERA));
+        assertEquals(Boolean.TRUE, AppOpsGrantVerifier.INSTANCE.verify(mActivity, Manifest.permission.RECORD_AUDIO));
+        // No app op, the probe decides
+        assertNull(AppOpsGrantVerifier.INSTANCE.verify(mActivity, "com.tbruyelle.rxpermissions2.permission.NO_OP"));
+    }
+
+    @Test
+    public void permissionSet_containsAll() {
+        PermissionSet set = PermissionSet.of(Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE);
+        PermissionSet subset = PermissionSet.of(Manifest.permission.CAMERA, Manifest.permission.CAMERA);
+
+        assertEquals(2, set.size());
+        assertEquals(1, subset.size());
+        assertTrue(set.containsAll(subset));
+        assertFalse(subset.containsAll(set));
+        assertTrue(set.contains(Manifest.permission.READ_PHONE_STATE));
+        assertFalse(subset.contains(Manifest.permission.READ_PHONE_STATE));
+        assertEquals(PermissionSet.of(Manifest.permission.CAMERA), subset);
+    }
+
+    @Test
+    public void permissionResult_lateSubscriber() {
+        Permission permission = new Permission(Manifest.permission.CAMERA, true);
+        PermissionResult result = new PermissionResult(PermissionInterner.intern(permission.name), null);
+
+        TestObserver<Permission> sub = result.test();
+        result.onResult(permission);
+        result.onResult(new Permission(Manifest.permission.CAMERA, false));
+        TestObserver<Permission> lateSub = result.test();
+
+        sub.assertResult(permission);
+        lateSub.assertResult(permission);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestSingle_severalPermissions_granted() {
+        String[] permissions = new String[]{Manifest.permission.READ_PHONE_STATE, Manifest.permission.CAMERA};
+        when(mRxPermissions.isGranted(Manifest.permission.CAMERA)).thenReturn(true);
+
+        TestObserver<Boolean> sub = mRxPermissions.requestSingle(permissions).test();
+        mRxPermissions.onRequestPermissionsResult(
+                new String[]{Manifest.permission.READ_PHONE_STATE},
+                new int[]{PackageManager.PERMISSION_GRANTED});
+
+        sub.assertResult(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestCombinedSingle_alreadyGranted() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        when(mRxPermissions.isGranted(permission)).thenReturn(true);
+
+        TestObserver<Permission> sub = mRxPermissions.requestCombinedSingle(permission).test();
+
+        sub.assertResult(new Permission(permission, true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requireAll_denied() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+
+        TestObserver<Void> sub = mRxPermissions.requireAll(permission).test();
+        mRxPermissions.onRequestPermissionsResult(
+                new String[]{permission},
+                new int[]{PackageManager.PERMISSION_DENIED});
+
+        sub.assertError(PermissionDeniedException.class);
+    }
+
     @Test
     @TargetApi(Build.VERSION_CODES.M)
     public void subscription_trigger_granted() {
@@ -516,6 +1073,115 @@ public class RxPermissionsTest {
         sub.assertValue(new Permission(permission, true));
     }
 
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void eachSubscription_triggerDeduplication() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+        PublishSubject<Object> trigger = PublishSubject.create();
+        mRxPermissions.setTriggerDeduplication(true);
+
+        TestObserver<Permission> sub = trigger.compose(mRxPermissions.ensureEach(permission)).test();
+        trigger.onNext(1);
+        trigger.onNext(2);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+
+        sub.assertNoErrors();
+        sub.assertNotTerminated();
+        sub.assertValues(new Permission(permission, true), new Permission(permission, true));
+        verify(mRxPermissions, times(1)).isGranted(permission);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void flowableSubscription_burst_dropped() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        when(mRxPermissions.isGranted(permission)).thenReturn(false);
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+        PublishProcessor<Object> trigger = PublishProcessor.create();
+
+        TestSubscriber<Boolean> sub = trigger
+                .compose(mRxPermissions.ensureFlowable(BackpressureStrategy.DROP, permission))
+                .test();
+        trigger.onNext(1);
+        trigger.onNext(2);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+
+        sub.assertNoErrors();
+        sub.assertNotTerminated();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void flowableSubscription_burst_latestKept() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+        PublishProcessor<Object> trigger = PublishProcessor.create();
+
+        TestSubscriber<Boolean> sub = trigger
+                .compose(mRxPermissions.ensureFlowable(BackpressureStrategy.LATEST, permission))
+                .test();
+        trigger.onNext(1);
+        trigger.onNext(2);
+        trigger.onNext(3);
+        // One answer per trigger, those without a request are ignored
+        for (int i = 0; i < 3; i++) {
+            mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+        }
+
+        sub.assertNoErrors();
+        sub.assertNotTerminated();
+        sub.assertValues(true, true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void flowableSubscription_burst_buffered() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+        PublishProcessor<Object> trigger = PublishProcessor.create();
+
+        TestSubscriber<Boolean> sub = trigger
+                .compose(mRxPermissions.ensureFlowable(BackpressureStrategy.BUFFER, permission))
+                .test();
+        trigger.onNext(1);
+        trigger.onNext(2);
+        trigger.onNext(3);
+        for (int i = 0; i < 3; i++) {
+            mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+        }
+
+        sub.assertNoErrors();
+        sub.assertNotTerminated();
+        sub.assertValues(true, true, true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void flowableSubscription_burst_bufferOverflowDropped() {
+        String permission = Manifest.permission.READ_PHONE_STATE;
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+        PublishProcessor<Object> trigger = PublishProcessor.create();
+        mRxPermissions.setTriggerBufferSize(2);
+
+        TestSubscriber<Boolean> sub = trigger
+                .compose(mRxPermissions.ensureFlowable(BackpressureStrategy.BUFFER, permission))
+                .test();
+        // The first one is requested, the next two are buffered
+        trigger.onNext(1);
+        trigger.onNext(2);
+        trigger.onNext(3);
+        trigger.onNext(4);
+        for (int i = 0; i < 4; i++) {
+            mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+        }
+
+        sub.assertNoErrors();
+        sub.assertNotTerminated();
+        sub.assertValues(true, true, true);
+    }
+
     @Test
     @TargetApi(Build.VERSION_CODES.M)
     public void shouldShowRequestPermissionRationale_allDenied_allRationale() {
@@ -673,4 +1339,125 @@ public class RxPermissionsTest {
 
         assertFalse(revoked);
     }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void isGranted_grantStateCache() {
+        // unmock isGranted
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        when(mActivity.checkSelfPermission("p")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        mRxPermissions.setGrantStateCache(true);
+
+        assertTrue(mRxPermissions.isGranted("p"));
+        assertTrue(mRxPermissions.isGranted("p"));
+
+        verify(mActivity, times(1)).checkSelfPermission("p");
+        assertEquals(1, mRxPermissions.getGrantStateCacheHits());
+        assertEquals(1, mRxPermissions.getGrantStateCacheMisses());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void snapshot_diff() {
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        PackageManager pm = mock(PackageManager.class);
+        when(mActivity.getPackageManager()).thenReturn(pm);
+        when(mActivity.checkSelfPermission("p1")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        when(mActivity.checkSelfPermission("p2")).thenReturn(PackageManager.PERMISSION_DENIED);
+
+        PermissionSnapshot before = mRxPermissions.snapshot("p1", "p2");
+        when(mActivity.checkSelfPermission("p2")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        PermissionSnapshot after = mRxPermissions.snapshot("p1", "p2");
+
+        assertTrue(before.isGranted("p1"));
+        assertFalse(before.isGranted("p2"));
+        assertTrue(after.isGranted("p2"));
+        assertEquals(1, after.diff(before).size());
+        assertEquals(new Permission("p2", true), after.diff(before).get(0));
+        assertTrue(after.diff(after).isEmpty());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void observeChanges_grantedInSettings() {
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        PackageManager pm = mock(PackageManager.class);
+        when(mActivity.getPackageManager()).thenReturn(pm);
+        when(mActivity.checkSelfPermission("p1")).thenReturn(PackageManager.PERMISSION_DENIED);
+        when(mActivity.checkSelfPermission("p2")).thenReturn(PackageManager.PERMISSION_DENIED);
+
+        TestObserver<Permission> sub = mRxPermissions.observeChanges("p1").test();
+        TestObserver<Permission> otherSub = mRxPermissions.observeChanges("p1", "p2").test();
+        when(mActivity.checkSelfPermission("p1")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        mActivityController.pause().resume();
+        mActivityController.pause().resume();
+
+        sub.assertNoErrors();
+        sub.assertNotTerminated();
+        sub.assertValue(new Permission("p1", true));
+        otherSub.assertValue(new Permission("p1", true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void observeChanges_newWatcher_keepsBaseline() {
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        PackageManager pm = mock(PackageManager.class);
+        when(mActivity.getPackageManager()).thenReturn(pm);
+        when(mActivity.checkSelfPermission("p1")).thenReturn(PackageManager.PERMISSION_DENIED);
+        when(mActivity.checkSelfPermission("p2")).thenReturn(PackageManager.PERMISSION_DENIED);
+
+        TestObserver<Permission> sub = mRxPermissions.observeChanges("p1").test();
+        mActivityController.pause();
+        when(mActivity.checkSelfPermission("p1")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        mRxPermissions.observeChanges("p2").test();
+        mActivityController.resume();
+
+        sub.assertValue(new Permission("p1", true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestCoalescing_sameFrame_singleSystemRequest() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        RxPermissions rxPermissions = new RxPermissions(activity);
+        rxPermissions.setRequestCoalescing(true);
+
+        TestObserver<Permission> camera = rxPermissions.requestEach(Manifest.permission.CAMERA).test();
+        TestObserver<Permission> record = rxPermissions.requestEach(Manifest.permission.RECORD_AUDIO).test();
+        RxPermissionsFragment fragment = rxPermissions.mRxPermissionsFragment.get();
+        // What the main looper does once idle
+        fragment.flushQueuedPermissions();
+        fragment.flushQueuedPermissions();
+
+        assertEquals(1, fragment.getInFlightRequestCount());
+        fragment.onRequestPermissionsResult(
+                new String[]{Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED},
+                new boolean[2]);
+        camera.assertResult(new Permission(Manifest.permission.CAMERA, true));
+        record.assertResult(new Permission(Manifest.permission.RECORD_AUDIO, false));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requests_backToBack_ownRequestCodes() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+        RxPermissions rxPermissions = new RxPermissions(activity);
+
+        TestObserver<Permission> camera = rxPermissions.requestEach(Manifest.permission.CAMERA).test();
+        TestObserver<Permission> record = rxPermissions.requestEach(Manifest.permission.RECORD_AUDIO).test();
+        RxPermissionsFragment fragment = rxPermissions.mRxPermissionsFragment.get();
+
+        assertEquals(2, fragment.getInFlightRequestCount());
+        // The second request is interrupted, only its permissions are denied
+        fragment.onRequestPermissionsResult(RxPermissionsFragment.FIRST_REQUEST_CODE + 1, new String[0], new int[0]);
+        camera.assertEmpty();
+        record.assertResult(new Permission(Manifest.permission.RECORD_AUDIO, false));
+        fragment.onRequestPermissionsResult(RxPermissionsFragment.FIRST_REQUEST_CODE,
+                new String[]{Manifest.permission.CAMERA}, new int[]{PackageManager.PERMISSION_GRANTED});
+        camera.assertResult(new Permission(Manifest.permission.CAMERA, true));
+        assertEquals(0, fragment.getInFlightRequestCount());
+    }
 }